@@ -0,0 +1,159 @@
+package org.agmip.common;
+
+/**
+ * Codec between AgMIP standard date strings (YYYYMMDD) and epoch days (the
+ * number of days since 1970-01-01 in the proleptic Gregorian calendar).
+ *
+ * All the methods are static and keep no shared mutable state, so they can be
+ * called from any number of threads without synchronization.
+ */
+public final class AgmipDateCodec {
+
+    /**
+     * The value returned by {@link #parse(CharSequence)} when the input is not
+     * a valid AgMIP date string.
+     */
+    public static final int INVALID = Integer.MIN_VALUE;
+    private static final int DAYS_PER_400_YEARS = 146097;
+    private static final int DAYS_0000_TO_1970 = 719468;
+
+    /**
+     * Cannot instantiate this class.
+     */
+    private AgmipDateCodec() {
+    }
+
+    /**
+     * Parse an AgMIP standard date string (YYYYMMDD) to epoch day.
+     *
+     * @param agmipDate AgMIP standard date string
+     *
+     * @return The epoch day of the date, or {@link #INVALID} if the input is
+     * not a valid calendar date with eight digits
+     */
+    public static int parse(CharSequence agmipDate) {
+        if (agmipDate == null || agmipDate.length() != 8) {
+            return INVALID;
+        }
+        int value = 0;
+        for (int i = 0; i < 8; i++) {
+            int digit = agmipDate.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+        }
+        int year = value / 10000;
+        int month = value / 100 % 100;
+        int day = value % 100;
+        if (month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return INVALID;
+        }
+        return toEpochDay(year, month, day);
+    }
+
+    /**
+     * Get the epoch day for the given calendar date. The month and day are
+     * not validated.
+     *
+     * @param year The year
+     * @param month The month of year (1-12)
+     * @param day The day of month (1-31)
+     *
+     * @return The epoch day
+     */
+    public static int toEpochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * DAYS_PER_400_YEARS + doe - DAYS_0000_TO_1970;
+    }
+
+    /**
+     * Get the date of the given epoch day packed as an integer in the form of
+     * YYYYMMDD (e.g. 19990415)
+     *
+     * @param epochDay The epoch day
+     *
+     * @return The packed date
+     */
+    public static int toYmd(int epochDay) {
+        int z = epochDay + DAYS_0000_TO_1970;
+        int era = (z >= 0 ? z : z - DAYS_PER_400_YEARS + 1) / DAYS_PER_400_YEARS;
+        int doe = z - era * DAYS_PER_400_YEARS;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Append the AgMIP standard date string (YYYYMMDD) of the given epoch day
+     * to the buffer.
+     *
+     * @param epochDay The epoch day
+     * @param out The buffer to append to
+     *
+     * @return The input buffer
+     */
+    public static StringBuilder append(int epochDay, StringBuilder out) {
+        int ymd = toYmd(epochDay);
+        if (ymd < 0 || ymd > 99991231) {
+            // Out of the four-digit year range, no fixed width any more
+            return out.append(ymd);
+        }
+        for (int div = 10000000; div > 0; div /= 10) {
+            out.append((char) ('0' + ymd / div % 10));
+        }
+        return out;
+    }
+
+    /**
+     * Format the given epoch day to AgMIP standard date string (YYYYMMDD)
+     *
+     * @param epochDay The epoch day
+     *
+     * @return The AgMIP standard date string
+     */
+    public static String format(int epochDay) {
+        return append(epochDay, new StringBuilder(8)).toString();
+    }
+
+    /**
+     * Check if the given year is a leap year in Gregorian calendar
+     *
+     * @param year The year
+     *
+     * @return True for leap year
+     */
+    public static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * Get the number of days in the given month
+     *
+     * @param year The year
+     * @param month The month of year (1-12)
+     *
+     * @return The number of days
+     */
+    public static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.agmip.common;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Format {@code double} values with a fixed number of decimal places, the
+ * output is the same as {@code String.format(Locale.ROOT, "%.nf", value)},
+ * but without creating the format pattern and the
+ * {@link java.util.Formatter} for each value. The decimal separator is always
+ * {@code '.'}, regardless of the default locale.
+ *
+ * The value is rounded HALF_UP from its shortest decimal representation (see
+ * {@link Double#toString(double)}), the same as the {@link java.util.Formatter}
+ * does. Negative values which are rounded to zero keep the minus sign, e.g.
+ * {@code "-0.00"}. The values which are close to a tie after scaling are
+ * rounded by {@link BigDecimal} from the decimal representation.
+ */
+public final class DecimalFormatter {
+
+    private static final int MAX_FAST_PRECISION = 9;
+    private static final double MAX_FAST_SCALED = 1e15;
+    private static final long[] POWERS_OF_TEN = new long[MAX_FAST_PRECISION + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Cannot instantiate this class.
+     */
+    private DecimalFormatter() {
+    }
+
+    /**
+     * Format the value with the fixed number of decimal places
+     *
+     * @param value The value
+     * @param prec The number of decimal places (0 for no decimal part)
+     * @return The formatted string
+     */
+    public static String format(double value, int prec) {
+        return append(value, prec, new StringBuilder(24)).toString();
+    }
+
+    /**
+     * Append the value with the fixed number of decimal places to the
+     * builder
+     *
+     * @param value The value
+     * @param prec The number of decimal places (0 for no decimal part)
+     * @param out The builder to append to
+     * @return The builder
+     * @throws IllegalArgumentException if {@code prec} is negative
+     */
+    public static StringBuilder append(double value, int prec, StringBuilder out) {
+        if (prec < 0) {
+            throw new IllegalArgumentException("Negative precision: " + prec);
+        }
+        if (Double.isNaN(value)) {
+            return out.append("NaN");
+        }
+        if (Double.doubleToRawLongBits(value) < 0) {
+            out.append('-');
+            value = -value;
+        }
+        if (Double.isInfinite(value)) {
+            return out.append("Infinity");
+        }
+
+        if (prec <= MAX_FAST_PRECISION) {
+            double scaled = value * POWERS_OF_TEN[prec];
+            if (scaled < MAX_FAST_SCALED) {
+                long rounded = (long) scaled;
+                double frac = scaled - rounded;
+                // The scaled value carries the errors of the binary value and
+                // the multiplication, which only matter next to a tie
+                if (Math.abs(frac - 0.5) > 8 * Math.ulp(scaled)) {
+                    if (frac > 0.5) {
+                        rounded++;
+                    }
+                    return appendScaled(rounded, prec, out);
+                }
+            }
+        }
+        return out.append(new BigDecimal(Double.toString(value)).setScale(prec, RoundingMode.HALF_UP).toPlainString());
+    }
+
+    /**
+     * Append the scaled value as decimal with the number of decimal places
+     */
+    private static StringBuilder appendScaled(long scaled, int prec, StringBuilder out) {
+        long pow = POWERS_OF_TEN[prec];
+        out.append(scaled / pow);
+        if (prec > 0) {
+            out.append('.');
+            long frac = scaled % pow;
+            for (long p = pow / 10; p > frac && p > 1; p /= 10) {
+                out.append('0');
+            }
+            out.append(frac);
+        }
+        return out;
+    }
+}
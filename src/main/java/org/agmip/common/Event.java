@@ -3,18 +3,24 @@ package org.agmip.common;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import static org.agmip.util.MapUtil.*;
 
 /**
  * To handle the selected event in the event data array
  *
+ * The class is a cursor over the {@link EventIndex} of the array, so that
+ * moving to the next event and finding the insert position are binary
+ * searches. The index could be shared with other cursors and functions on the
+ * same array.
+ *
  * @author Meng Zhang
  */
 public class Event {
 
     private int next = -1;
     private Map template;
+    private Map templateSource;
     private ArrayList<Map> events;
+    private EventIndex index;
     private String eventType;
 
     /**
@@ -24,12 +30,32 @@ public class Event {
      * @eventType The type of events which will be handled
      */
     public Event(ArrayList<Map> events, String eventType) {
-        this.events = events;
+        this(new EventIndex(events), eventType);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param index The index of the event data array
+     * @eventType The type of events which will be handled
+     */
+    public Event(EventIndex index, String eventType) {
+        this.index = index;
+        this.events = index.getEvents();
         this.eventType = eventType;
         getNextEventIndex();
         setTemplate();
     }
 
+    /**
+     * Get the index of the event data array
+     *
+     * @return The event index
+     */
+    public EventIndex getIndex() {
+        return index;
+    }
+
     /**
      * Set event type and refresh the internal attributes
      *
@@ -43,14 +69,32 @@ public class Event {
     }
 
     /**
-     * Set template with selected event type
+     * Set template with selected event type. The template is copied from the
+     * current event when it is first used to create a new event, or before
+     * the current event is updated or handed out through this class. The
+     * current event should not be changed by others through the event data
+     * array until the next event type is set.
      */
     public void setTemplate() {
-        template = new HashMap();
-        if (isEventExist()) {
-            template.putAll(events.get(next));
+        template = null;
+        templateSource = isEventExist() ? events.get(next) : null;
+    }
+
+    /**
+     * Get the template, create it from the current event when first used
+     *
+     * @return The template
+     */
+    private Map getTemplate() {
+        if (template == null) {
+            template = new HashMap();
+            if (templateSource != null) {
+                template.putAll(templateSource);
+                templateSource = null;
+            }
+            template.put("event", eventType);
         }
-        template.put("event", eventType);
+        return template;
     }
 
     /**
@@ -58,7 +102,7 @@ public class Event {
      */
     public void removeEvent() {
         if (isEventExist()) {
-            events.remove(next);
+            index.remove(next);
             next--;
             getNextEventIndex();
         }
@@ -98,7 +142,15 @@ public class Event {
      */
     public void updateEvent(String key, String value, boolean useTemp, boolean toNext) {
         if (isEventExist()) {
-            getCurrentEvent().put(key, value);
+            Map current = events.get(next);
+            if (current == templateSource) {
+                // Keep the template as it was before the update
+                getTemplate();
+            }
+            current.put(key, value);
+            if ("date".equals(key) || "event".equals(key)) {
+                index.update(next);
+            }
         } else {
             Map tmp;
             if ("date".equals(key)) {
@@ -106,8 +158,14 @@ public class Event {
             } else {
                 tmp = addEvent(null, useTemp);
             }
-            tmp.putAll(template);
+            if (!useTemp) {
+                tmp.putAll(getTemplate());
+            } else if (template.containsKey("date")) {
+                // The new event already has the template, except the date
+                tmp.put("date", template.get("date"));
+            }
             tmp.put(key, value);
+            index.update(next);
         }
         if (toNext) {
             getNextEventIndex();
@@ -124,28 +182,31 @@ public class Event {
     public Map addEvent(String date, boolean useTemp) {
         Map ret = new HashMap();
         if (useTemp) {
-            ret.putAll(template);
+            ret.putAll(getTemplate());
         } else {
             ret.put("event", eventType);
         }
         ret.put("date", date);
         getInertIndex(ret);
-        events.add(next, ret);
+        index.add(next, ret);
         return ret;
     }
 
+    /**
+     * Create a batch to add many new events of the selected event type, which
+     * are merged into the array in one pass when the batch is committed
+     *
+     * @return The new batch
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
     /**
      * Move index to the next planting event
      */
     private void getNextEventIndex() {
-        for (int i = next + 1; i < events.size(); i++) {
-            String evName = getValueOr(events.get(i), "event", "");
-            if (evName.equals(eventType)) {
-                next = i;
-                return;
-            }
-        }
-        next = events.size();
+        next = index.nextPosition(eventType, next + 1);
     }
 
     /**
@@ -164,7 +225,12 @@ public class Event {
      */
     public Map getCurrentEvent() {
         if (isEventExist()) {
-            return events.get(next);
+            Map current = events.get(next);
+            if (current == templateSource) {
+                // The caller may change it, keep the template as it is now
+                getTemplate();
+            }
+            return current;
         } else {
             return new HashMap();
         }
@@ -172,28 +238,80 @@ public class Event {
 
     /**
      * Find out the insert position for the new event. If date is not available
-     * for the new event, will return the last position of array
+     * for the new event, will return the last position of array. The new
+     * event is placed before the first event with later date, starting from
+     * the current event.
      *
      * @param event The new event data
      */
     private void getInertIndex(Map event) {
-        int iDate;
-        try {
-            iDate = Integer.parseInt(getValueOr(event, "date", ""));
-        } catch (Exception e) {
+        int iDate = EventIndex.getNewKey(event);
+        if (iDate == EventIndex.INVALID_KEY) {
             next = events.size();
             return;
         }
-        for (int i = isEventExist() ? next : 0; i < events.size(); i++) {
-            try {
-                if (iDate < Integer.parseInt(getValueOr(events.get(i), "date", "0"))) {
-                    next = i;
-                    return;
-                }
-            } catch (Exception e) {
+        next = index.insertPosition(iDate, isEventExist() ? next : 0);
+    }
+
+    /**
+     * Collect new events and merge them into the event data array at once.
+     *
+     * Each new event is placed where {@link Event#addEvent(String, boolean)}
+     * would place it from the current event at the time of the commit: before
+     * the first event with later date starting from the current event (or
+     * the beginning of the array if there is no current event), and after the
+     * events with the same date. The new events for the same place are
+     * ordered by date, and then by the order they are added. The new events
+     * without valid date are appended to the end of the array. The current
+     * event is kept after the commit.
+     *
+     * Unlike the repeated calls of {@link Event#addEvent(String, boolean)},
+     * which move the current event to each added event, the place of each
+     * new event does not depend on the other new events.
+     */
+    public class Batch {
+
+        private final ArrayList<Map> pending = new ArrayList<Map>();
+
+        /**
+         * Create a new event with selected event type and input date, the
+         * event could be further modified until the batch is committed
+         *
+         * @param date The event date
+         * @param useTemp True for using template to create new data
+         * @return The generated event data map
+         */
+        public Map addEvent(String date, boolean useTemp) {
+            Map ret = new HashMap();
+            if (useTemp) {
+                ret.putAll(getTemplate());
+            } else {
+                ret.put("event", eventType);
             }
+            ret.put("date", date);
+            pending.add(ret);
+            return ret;
         }
 
-        next = events.size();
+        /**
+         * Get the number of the events waiting for commit
+         *
+         * @return The number of pending events
+         */
+        public int size() {
+            return pending.size();
+        }
+
+        /**
+         * Merge all the pending events into the event data array
+         */
+        public void commit() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            int current = index.merge(pending, isEventExist() ? next : -1);
+            pending.clear();
+            next = current >= 0 ? current : events.size();
+        }
     }
 }
@@ -0,0 +1,563 @@
+package org.agmip.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.agmip.common.Functions.*;
+
+/**
+ * Index of the event data array, which is built in one pass and groups the
+ * event positions by event type together with the parsed date keys.
+ *
+ * The index could be shared by the functions handling the same event array,
+ * such as several {@link Event} cursors on different event types. It is kept
+ * up to date with the changes made through this class and {@link Event}, and
+ * is rebuilt when the array is changed by others in its size or in its first
+ * or last event. Other changes made by others, such as replacing or
+ * reordering the events in the middle of the array, or changing the event
+ * types and dates in place, are not detected, and need {@link #refresh()}
+ * before the index is used again.
+ */
+public class EventIndex {
+
+    /**
+     * The date key of the event whose date is not an integer
+     */
+    public static final int INVALID_KEY = INVALID_INT;
+    private static final int MISSING_KEY = 0;
+    private final ArrayList<Map> events;
+    private int indexedSize = -1;
+    private Map first;
+    private Map last;
+    private int[] keys;
+    private String[] types;
+    private boolean sorted;
+    private HashMap<String, Positions> positions;
+
+    /**
+     * Constructor
+     *
+     * @param events The event data array
+     */
+    public EventIndex(ArrayList<Map> events) {
+        this.events = events;
+        checkIndex();
+    }
+
+    /**
+     * Get the event data array
+     *
+     * @return The event data array
+     */
+    public ArrayList<Map> getEvents() {
+        return events;
+    }
+
+    /**
+     * Get the number of events
+     *
+     * @return The number of events
+     */
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * Get the number of events of the type
+     *
+     * @param eventType The event type
+     * @return The number of events
+     */
+    public int count(String eventType) {
+        checkIndex();
+        Positions pos = positions.get(eventType);
+        return pos == null ? 0 : pos.size;
+    }
+
+    /**
+     * Get the events of the type in the order of the array
+     *
+     * @param eventType The event type
+     * @return The list of the events
+     */
+    public List<Map> getEvents(String eventType) {
+        checkIndex();
+        Positions pos = positions.get(eventType);
+        ArrayList<Map> ret = new ArrayList<Map>(pos == null ? 0 : pos.size);
+        if (pos != null) {
+            for (int i = 0; i < pos.size; i++) {
+                ret.add(events.get(pos.values[i]));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the first event of the type
+     *
+     * @param eventType The event type
+     * @return The event data, or {@code null} if not available
+     */
+    public Map getFirstEvent(String eventType) {
+        int pos = nextPosition(eventType, 0);
+        return pos < events.size() ? events.get(pos) : null;
+    }
+
+    /**
+     * Find the position of the first event of the type at or after the
+     * position
+     *
+     * @param eventType The event type
+     * @param from The position to start from
+     * @return The position of the event, or the number of events if not
+     * available
+     */
+    public int nextPosition(String eventType, int from) {
+        checkIndex();
+        Positions pos = positions.get(eventType);
+        if (pos == null) {
+            return events.size();
+        }
+        int idx = pos.find(from);
+        return idx < pos.size ? pos.values[idx] : events.size();
+    }
+
+    /**
+     * Get the date key of the event at the position, the event without date
+     * is taken as 0
+     *
+     * @param pos The position of the event
+     * @return The date key, or {@link #INVALID_KEY} if the date is not an
+     * integer
+     */
+    public int getDateKey(int pos) {
+        checkIndex();
+        return keys[pos];
+    }
+
+    /**
+     * Remove all the events of the type from the array in one pass
+     *
+     * @param eventType The event type
+     */
+    public void removeAll(String eventType) {
+        checkIndex();
+        Positions removed = positions.remove(eventType);
+        if (removed == null || removed.size == 0) {
+            return;
+        }
+        ArrayList<Map> kept = new ArrayList<Map>(indexedSize - removed.size);
+        int count = 0;
+        for (int i = 0; i < indexedSize; i++) {
+            if (!eventType.equals(types[i])) {
+                kept.add(events.get(i));
+                keys[count] = keys[i];
+                types[count] = types[i];
+                count++;
+            }
+        }
+        events.clear();
+        events.addAll(kept);
+        indexedSize = count;
+        trackEnds();
+        // Removing keys keeps the sorted keys in order
+        indexPositions();
+    }
+
+    /**
+     * Rebuild the index, for the changes made by others on the event types
+     * or dates
+     */
+    public void refresh() {
+        indexedSize = -1;
+        checkIndex();
+    }
+
+    /**
+     * Append the values of a new event to the end of the array, in the same
+     * way as inserting them one by one with the AcePathfinderUtil. The values
+     * are put into the last event if it is the same type and does not have
+     * the key yet, otherwise into a new event.
+     *
+     * @param eventType The event type
+     * @param keys The keys of the values, in the order of inserting
+     * @param values The values
+     */
+    public void append(String eventType, String[] keys, String[] values) {
+        int pos = events.size() - 1;
+        Map event = pos < 0 ? null : events.get(pos);
+        for (int i = 0; i < keys.length; i++) {
+            if (event != null && !event.containsKey("event")) {
+                event.put("event", eventType);
+                update(pos);
+            }
+            if (event == null || !eventType.equals(event.get("event")) || event.containsKey(keys[i])) {
+                event = new HashMap();
+                event.put("event", eventType);
+                pos = events.size();
+                add(pos, event);
+            }
+            event.put(keys[i], values[i]);
+            if ("date".equals(keys[i])) {
+                update(pos);
+            }
+        }
+    }
+
+    /**
+     * Find the insert position for a new event with the date. The new event
+     * is placed before the first event with later date, starting from the
+     * position.
+     *
+     * @param date The date key of the new event
+     * @param from The position to start from
+     * @return The insert position
+     */
+    int insertPosition(int date, int from) {
+        checkIndex();
+        if (sorted) {
+            return upperBound(keys, from, indexedSize, date);
+        }
+        for (int i = from; i < indexedSize; i++) {
+            if (keys[i] != INVALID_KEY && date < keys[i]) {
+                return i;
+            }
+        }
+        return indexedSize;
+    }
+
+    /**
+     * Add the new event into the array at the position
+     *
+     * @param pos The position
+     * @param event The new event data
+     */
+    void add(int pos, Map event) {
+        checkIndex();
+        events.add(pos, event);
+        if (indexedSize == keys.length) {
+            keys = Arrays.copyOf(keys, indexedSize * 2);
+            types = Arrays.copyOf(types, indexedSize * 2);
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, indexedSize - pos);
+        System.arraycopy(types, pos, types, pos + 1, indexedSize - pos);
+        keys[pos] = getKey(event);
+        types[pos] = getType(event);
+        indexedSize++;
+        trackEnds();
+        sorted = sorted && isInOrder(pos);
+        for (Positions p : positions.values()) {
+            p.shift(pos, 1);
+        }
+        getPositions(types[pos]).insert(pos);
+    }
+
+    /**
+     * Remove the event at the position from the array
+     *
+     * @param pos The position
+     */
+    void remove(int pos) {
+        checkIndex();
+        events.remove(pos);
+        positions.get(types[pos]).delete(pos);
+        for (Positions p : positions.values()) {
+            p.shift(pos + 1, -1);
+        }
+        // Removing a key keeps the sorted keys in order
+        System.arraycopy(keys, pos + 1, keys, pos, indexedSize - pos - 1);
+        System.arraycopy(types, pos + 1, types, pos, indexedSize - pos - 1);
+        indexedSize--;
+        trackEnds();
+    }
+
+    /**
+     * Refresh the index for the event at the position, after its type or
+     * date is changed
+     *
+     * @param pos The position
+     */
+    void update(int pos) {
+        if (!isIndexed()) {
+            checkIndex();
+            return;
+        }
+        Map event = events.get(pos);
+        keys[pos] = getKey(event);
+        sorted = sorted && isInOrder(pos);
+        String type = getType(event);
+        if (!type.equals(types[pos])) {
+            positions.get(types[pos]).delete(pos);
+            types[pos] = type;
+            getPositions(type).insert(pos);
+        }
+    }
+
+    /**
+     * Merge the new events into the array in one pass. Each new event is
+     * placed before the first event with later date, starting from the
+     * current event (or the beginning of the array if not tracked), the same
+     * as {@link #insertPosition(int, int)}. The new events for the same place
+     * are ordered by date, and then by the input order. The new events
+     * without valid date are appended to the end of the array.
+     *
+     * @param newEvents The new events
+     * @param current The position of the current event, which is tracked and
+     * where the search of the place starts, or -1 to start from the beginning
+     * @return The position of the tracked event after merge, or -1 if not
+     * tracked
+     */
+    int merge(List<Map> newEvents, int current) {
+        checkIndex();
+        int size = indexedSize;
+        int from = Math.max(current, 0);
+
+        // The first event later than a date is the first position whose
+        // running maximum of the valid keys from the start is later than the
+        // date
+        int[] maxKeys = new int[size];
+        int max = INVALID_KEY;
+        for (int i = from; i < size; i++) {
+            if (keys[i] != INVALID_KEY && keys[i] > max) {
+                max = keys[i];
+            }
+            maxKeys[i] = max;
+        }
+        PendingEvent[] items = new PendingEvent[newEvents.size()];
+        for (int i = 0; i < items.length; i++) {
+            Map event = newEvents.get(i);
+            int key = getNewKey(event);
+            int slot = key == INVALID_KEY ? size + 1 : upperBound(maxKeys, from, size, key);
+            items[i] = new PendingEvent(event, key, slot);
+        }
+        // Stable sort, the events with same place and date keep the order
+        Arrays.sort(items);
+
+        ArrayList<Map> merged = new ArrayList<Map>(size + items.length);
+        int newCurrent = -1;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < items.length && items[j].slot <= i) {
+                merged.add(items[j++].event);
+            }
+            if (i == current) {
+                newCurrent = merged.size();
+            }
+            merged.add(events.get(i));
+        }
+        while (j < items.length) {
+            merged.add(items[j++].event);
+        }
+        events.clear();
+        events.addAll(merged);
+        checkIndex();
+        return newCurrent;
+    }
+
+    /**
+     * Get the date key of the new event
+     *
+     * @param event The new event data
+     * @return The date key, or {@link #INVALID_KEY} if the date is missing or
+     * not an integer
+     */
+    static int getNewKey(Map event) {
+        if (event.get("date") == null) {
+            return INVALID_KEY;
+        }
+        return getKey(event);
+    }
+
+    /**
+     * Rebuild the index if the event array has been changed
+     */
+    private void checkIndex() {
+        if (isIndexed()) {
+            return;
+        }
+        int size = events.size();
+        keys = new int[Math.max(size, 10)];
+        types = new String[keys.length];
+        sorted = true;
+        for (int i = 0; i < size; i++) {
+            Map event = events.get(i);
+            keys[i] = getKey(event);
+            types[i] = getType(event);
+            sorted = sorted && keys[i] != INVALID_KEY && (i == 0 || keys[i - 1] <= keys[i]);
+        }
+        indexedSize = size;
+        trackEnds();
+        indexPositions();
+    }
+
+    /**
+     * Check if the index matches the size and the first and last events of
+     * the array
+     */
+    private boolean isIndexed() {
+        int size = events.size();
+        return indexedSize == size
+                && (size == 0 || (events.get(0) == first && events.get(size - 1) == last));
+    }
+
+    /**
+     * Keep the first and last events of the indexed array
+     */
+    private void trackEnds() {
+        first = indexedSize > 0 ? events.get(0) : null;
+        last = indexedSize > 0 ? events.get(indexedSize - 1) : null;
+    }
+
+    /**
+     * Group the positions by event type
+     */
+    private void indexPositions() {
+        positions = new HashMap<String, Positions>();
+        for (int i = 0; i < indexedSize; i++) {
+            getPositions(types[i]).append(i);
+        }
+    }
+
+    private Positions getPositions(String eventType) {
+        Positions ret = positions.get(eventType);
+        if (ret == null) {
+            ret = new Positions();
+            positions.put(eventType, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Check if the key at the position is valid and in order with its
+     * neighbors
+     */
+    private boolean isInOrder(int pos) {
+        return keys[pos] != INVALID_KEY
+                && (pos == 0 || keys[pos - 1] <= keys[pos])
+                && (pos == indexedSize - 1 || keys[pos] <= keys[pos + 1]);
+    }
+
+    /**
+     * Find the first position in the sorted range whose value is larger than
+     * the key
+     *
+     * @param values The sorted values
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @param key The key to search
+     * @return The first position with larger value, or the end of the range
+     */
+    private static int upperBound(int[] values, int from, int to, int key) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the date key of the event in the array, the event without date is
+     * taken as 0
+     */
+    private static int getKey(Map event) {
+        Object date = event.get("date");
+        if (date == null) {
+            return MISSING_KEY;
+        } else if (date instanceof String) {
+            return toInt((String) date);
+        }
+        return INVALID_KEY;
+    }
+
+    /**
+     * Get the event type, the event without type is taken as empty string
+     */
+    private static String getType(Map event) {
+        Object type = event.get("event");
+        return type instanceof String ? (String) type : "";
+    }
+
+    /**
+     * The sorted positions of one event type
+     */
+    private static class Positions {
+
+        private int[] values = new int[4];
+        private int size;
+
+        /**
+         * Find the first index whose position is not before the position
+         */
+        public int find(int pos) {
+            int idx = Arrays.binarySearch(values, 0, size, pos);
+            return idx < 0 ? -idx - 1 : idx;
+        }
+
+        public void append(int pos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = pos;
+        }
+
+        public void insert(int pos) {
+            int idx = find(pos);
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(values, idx, values, idx + 1, size - idx);
+            values[idx] = pos;
+            size++;
+        }
+
+        public void delete(int pos) {
+            int idx = find(pos);
+            if (idx < size && values[idx] == pos) {
+                System.arraycopy(values, idx + 1, values, idx, size - idx - 1);
+                size--;
+            }
+        }
+
+        /**
+         * Move the positions at or after the position by the offset
+         */
+        public void shift(int from, int offset) {
+            for (int i = find(from); i < size; i++) {
+                values[i] += offset;
+            }
+        }
+    }
+
+    /**
+     * A new event to merge with its parsed date and place in the array
+     */
+    private static class PendingEvent implements Comparable<PendingEvent> {
+
+        private final Map event;
+        private final int key;
+        private final int slot;
+
+        public PendingEvent(Map event, int key, int slot) {
+            this.event = event;
+            this.key = key;
+            this.slot = slot;
+        }
+
+        public int compareTo(PendingEvent other) {
+            if (slot != other.slot) {
+                return slot < other.slot ? -1 : 1;
+            } else if (key != other.key) {
+                return key < other.key ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
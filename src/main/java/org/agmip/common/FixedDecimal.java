@@ -0,0 +1,172 @@
+package org.agmip.common;
+
+/**
+ * Exact decimal arithmetic on {@code long} for the plain number strings
+ * commonly found in ACE data (up to 9 decimal places and 18 significant
+ * digits). The results are formatted the same way as
+ * {@link java.math.BigDecimal#toString()}.
+ *
+ * Every operation returns {@code null} when the inputs or the result are out
+ * of the supported range, so that the caller can fall back to
+ * {@link java.math.BigDecimal}.
+ */
+final class FixedDecimal {
+
+    private static final int MAX_SCALE = 9;
+    private static final int MAX_DIGITS = 18;
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    private final long unscaled;
+    private final int scale;
+    private final int precision;
+
+    private FixedDecimal(long unscaled, int scale) {
+        this.unscaled = unscaled;
+        this.scale = scale;
+        this.precision = precision(unscaled);
+    }
+
+    /**
+     * Calculate {@code n1 + n2}
+     *
+     * @param n1 A plain number string
+     * @param n2 A plain number string
+     *
+     * @return The result string, or {@code null} if it is out of range
+     */
+    static String add(String n1, String n2) {
+        FixedDecimal d1 = parse(n1);
+        FixedDecimal d2 = d1 == null ? null : parse(n2);
+        if (d2 == null) {
+            return null;
+        }
+        int scale = Math.max(d1.scale, d2.scale);
+        if (d1.precision + scale - d1.scale > MAX_DIGITS
+                || d2.precision + scale - d2.scale > MAX_DIGITS) {
+            return null;
+        }
+        long sum = d1.unscaled * POWERS_OF_TEN[scale - d1.scale]
+                + d2.unscaled * POWERS_OF_TEN[scale - d2.scale];
+        return toPlainString(sum, scale);
+    }
+
+    /**
+     * Calculate {@code n1 * n2}
+     *
+     * @param n1 A plain number string
+     * @param n2 A plain number string
+     *
+     * @return The result string, or {@code null} if it is out of range
+     */
+    static String multiply(String n1, String n2) {
+        FixedDecimal d1 = parse(n1);
+        FixedDecimal d2 = d1 == null ? null : parse(n2);
+        if (d2 == null || d1.precision + d2.precision > MAX_DIGITS) {
+            return null;
+        }
+        return toPlainString(d1.unscaled * d2.unscaled, d1.scale + d2.scale);
+    }
+
+    /**
+     * Parse a plain number string (no exponent part)
+     *
+     * @param value The number string
+     *
+     * @return The parsed number, or {@code null} if it is not supported
+     */
+    private static FixedDecimal parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        int len = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (len > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int scale = -1;
+        boolean hasDigit = false;
+        for (; i < len; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigit = true;
+                if (unscaled != 0 || c != '0') {
+                    if (++digits > MAX_DIGITS) {
+                        return null;
+                    }
+                }
+                unscaled = unscaled * 10 + (c - '0');
+                if (scale >= 0 && ++scale > MAX_SCALE) {
+                    return null;
+                }
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                return null;
+            }
+        }
+        if (!hasDigit) {
+            return null;
+        }
+        return new FixedDecimal(negative ? -unscaled : unscaled, scale < 0 ? 0 : scale);
+    }
+
+    /**
+     * Format the number in the same way as {@link java.math.BigDecimal#toString()}
+     *
+     * @param unscaled The unscaled value
+     * @param scale The scale
+     *
+     * @return The number string, or {@code null} if the scientific notation is
+     * required
+     */
+    private static String toPlainString(long unscaled, int scale) {
+        int precision = precision(unscaled);
+        if (precision - 1 - scale < -6) {
+            return null;
+        }
+        char[] buf = new char[precision + scale + 3];
+        int pos = buf.length;
+        long abs = unscaled < 0 ? -unscaled : unscaled;
+        for (int i = 0; i < scale; i++) {
+            buf[--pos] = (char) ('0' + abs % 10);
+            abs /= 10;
+        }
+        if (scale > 0) {
+            buf[--pos] = '.';
+        }
+        do {
+            buf[--pos] = (char) ('0' + abs % 10);
+            abs /= 10;
+        } while (abs > 0);
+        if (unscaled < 0) {
+            buf[--pos] = '-';
+        }
+        return new String(buf, pos, buf.length - pos);
+    }
+
+    /**
+     * Get the number of decimal digits of the value (1 for zero)
+     *
+     * @param value The value
+     *
+     * @return The number of digits
+     */
+    private static int precision(long value) {
+        long abs = value < 0 ? -value : value;
+        int ret = 1;
+        while (ret < POWERS_OF_TEN.length && abs >= POWERS_OF_TEN[ret]) {
+            ret++;
+        }
+        return ret;
+    }
+}
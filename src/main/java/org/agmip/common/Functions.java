@@ -2,14 +2,33 @@ package org.agmip.common;
 
 import java.math.BigInteger;
 import java.math.BigDecimal;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.TimeZone;
 
 public class Functions {
-    private static final SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyyMMdd");
-    
+    /**
+     * The epoch day value used for a missing or invalid date.
+     */
+    public static final int INVALID_DATE = AgmipDateCodec.INVALID;
+    /**
+     * The value returned by {@link #toInt(CharSequence)} for a missing or
+     * invalid integer string. It is reserved for the parse failure, so the
+     * string {@code "-2147483648"} is also treated as out of range.
+     */
+    public static final int INVALID_INT = Integer.MIN_VALUE;
+    /**
+     * The value returned by {@link #toDouble(CharSequence)} for a missing or
+     * invalid number string. Test it with {@link Double#isNaN(double)}.
+     */
+    public static final double INVALID_NUMBER = Double.NaN;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
     /**
      * Cannot instantiate this class.
      */
@@ -65,6 +84,152 @@ public class Functions {
         return integer;
     }
 
+    /**
+     * Parse an integer string in the same format as
+     * {@link Integer#parseInt(String)}, without throwing exceptions.
+     *
+     * @param value An integer string
+     *
+     * @return the parsed value or {@link #INVALID_INT} if {@code value} is
+     * {@code null}, empty or not a valid integer (including
+     * {@code Integer.MIN_VALUE})
+     */
+    public static int toInt(CharSequence value) {
+        if (value == null) {
+            return INVALID_INT;
+        }
+        return toInt(value, 0, value.length());
+    }
+
+    /**
+     * Parse part of a string as an integer in the same format as
+     * {@link Integer#parseInt(String)}, without throwing exceptions.
+     *
+     * @param value A string which contains an integer
+     * @param begin The beginning index, inclusive
+     * @param end The ending index, exclusive
+     *
+     * @return the parsed value or {@link #INVALID_INT} if the given range is
+     * out of bounds, empty or not a valid integer (including
+     * {@code Integer.MIN_VALUE})
+     */
+    public static int toInt(CharSequence value, int begin, int end) {
+        if (value == null || begin < 0 || end > value.length() || begin >= end) {
+            return INVALID_INT;
+        }
+        boolean negative = false;
+        char c = value.charAt(begin);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++begin == end) {
+                return INVALID_INT;
+            }
+        }
+        long ret = 0;
+        for (int i = begin; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_INT;
+            }
+            ret = ret * 10 - digit;
+            if (ret <= INVALID_INT) {
+                return INVALID_INT;
+            }
+        }
+        return (int) (negative ? ret : -ret);
+    }
+
+    /**
+     * Parse a decimal number string, without throwing exceptions.
+     *
+     * Plain and scientific decimal notations (e.g. {@code -1.5}, {@code .25},
+     * {@code 1e-3}) with surrounding white spaces are supported, and the
+     * result is the same as {@link Double#parseDouble(String)}. The common
+     * short values are converted without creating any object.
+     *
+     * @param value A decimal number string
+     *
+     * @return the parsed value or {@link #INVALID_NUMBER} if {@code value} is
+     * {@code null}, blank or not a valid decimal number
+     */
+    public static double toDouble(CharSequence value) {
+        if (value == null) {
+            return INVALID_NUMBER;
+        }
+        int begin = 0;
+        int end = value.length();
+        while (begin < end && value.charAt(begin) <= ' ') {
+            begin++;
+        }
+        while (end > begin && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (begin == end) {
+            return INVALID_NUMBER;
+        }
+
+        int i = begin;
+        boolean negative = false;
+        char c = value.charAt(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean exact = true;
+        boolean point = false;
+        for (; i < end; i++) {
+            c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (point) {
+                        scale++;
+                    }
+                } else {
+                    exact = false;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return INVALID_NUMBER;
+        }
+        if (i < end) {
+            // Exponent part
+            c = value.charAt(i++);
+            if (c != 'e' && c != 'E') {
+                return INVALID_NUMBER;
+            }
+            if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                i++;
+            }
+            if (i == end) {
+                return INVALID_NUMBER;
+            }
+            for (; i < end; i++) {
+                c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    return INVALID_NUMBER;
+                }
+            }
+            exact = false;
+        }
+
+        if (!exact || scale >= POWERS_OF_TEN.length) {
+            // The syntax has been checked, so no exception is expected here
+            return Double.parseDouble(value.subSequence(begin, end).toString());
+        }
+        double ret = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -ret : ret;
+    }
+
     /**
      * Convert from AgMIP standard date string (YYYYMMDD) to a {@code Date}
      *
@@ -73,11 +238,12 @@ public class Functions {
      * @return {@code Date} represented by the AgMIP date string or {@code null}
      */
     public static Date convertFromAgmipDateString(String agmipDate) {
-        try {
-            return dateFormatter.parse(agmipDate);
-        } catch (ParseException ex) {
+        int epochDay = toEpochDay(agmipDate);
+        if (epochDay == INVALID_DATE) {
             return null;
         }
+        int ymd = AgmipDateCodec.toYmd(epochDay);
+        return new GregorianCalendar(ymd / 10000, ymd / 100 % 100 - 1, ymd % 100).getTime();
     }
 
     /**
@@ -89,7 +255,13 @@ public class Functions {
      */
     public static String convertToAgmipDateString(Date date) {
         if (date != null) {
-            return dateFormatter.format(date);
+            long millis = date.getTime();
+            millis += TimeZone.getDefault().getOffset(millis);
+            long epochDay = millis / MILLIS_PER_DAY;
+            if (millis % MILLIS_PER_DAY < 0) {
+                epochDay--;
+            }
+            return AgmipDateCodec.format((int) epochDay);
         } else {
             return null;
         }
@@ -104,28 +276,65 @@ public class Functions {
      * @return AgMIP standard date string of <code>initial + offset</code>
      */
     public static String dateOffset(String initial, String offset) {
-        Date date = convertFromAgmipDateString(initial);
-        BigInteger iOffset;
-        if (date == null) {
+        int date = toEpochDay(initial);
+        if (date == INVALID_DATE) {
             // Invalid date
             return null;
         }
-        GregorianCalendar cal = new GregorianCalendar();
-        cal.setTime(date);
 
-        try {
-            iOffset = new BigInteger(offset);
-            cal.add(GregorianCalendar.DAY_OF_MONTH, iOffset.intValue());
-        } catch (Exception ex) {
+        int iOffset = toInt(offset);
+        if (iOffset == INVALID_INT) {
             return null;
         }
-        return convertToAgmipDateString(cal.getTime());
+        return appendAgmipDate(offsetDays(date, iOffset), new StringBuilder(8)).toString();
+    }
+
+    /**
+     * Convert from AgMIP standard date string (YYYYMMDD) to epoch day (the
+     * number of days since 1970-01-01).
+     *
+     * @param agmipDate AgMIP standard date string
+     *
+     * @return the epoch day of {@code agmipDate} or {@link #INVALID_DATE}
+     */
+    public static int toEpochDay(CharSequence agmipDate) {
+        return AgmipDateCodec.parse(agmipDate);
+    }
+
+    /**
+     * Offset an epoch day by a set number of days.
+     *
+     * @param epochDay epoch day
+     * @param offset number of days to offset (can be positive or negative integer)
+     *
+     * @return epoch day of <code>epochDay + offset</code>, or
+     * {@link #INVALID_DATE} if {@code epochDay} is invalid
+     */
+    public static int offsetDays(int epochDay, int offset) {
+        if (epochDay == INVALID_DATE) {
+            return INVALID_DATE;
+        }
+        return epochDay + offset;
+    }
+
+    /**
+     * Append the AgMIP standard date string (YYYYMMDD) of an epoch day.
+     *
+     * @param epochDay epoch day
+     * @param out the buffer to append to
+     *
+     * @return {@code out}
+     */
+    public static StringBuilder appendAgmipDate(int epochDay, StringBuilder out) {
+        return AgmipDateCodec.append(epochDay, out);
     }
 
     /**
      * Offset a numeric string by another numeric string.
      * 
-     * Any numeric string recognized by {@code BigDecimal} is supported.
+     * Any numeric string recognized by {@code BigDecimal} is supported. Plain
+     * decimal strings are calculated on {@code long} values when the result
+     * fits, which gives the same result as {@code BigDecimal}.
      *
      * @param initial A valid number string
      * @param offset A valid number string
@@ -135,6 +344,11 @@ public class Functions {
      * @see BigDecimal
      */
     public static String numericOffset(String initial, String offset) {
+        String ret = FixedDecimal.add(initial, offset);
+        if (ret != null) {
+            return ret;
+        }
+
         BigDecimal number;
         BigDecimal dOffset;
 
@@ -150,7 +364,9 @@ public class Functions {
     /**
      * Multiply two numbers together
      * 
-     * Any numeric string recognized by {@code BigDecimal} is supported.
+     * Any numeric string recognized by {@code BigDecimal} is supported. Plain
+     * decimal strings are calculated on {@code long} values when the result
+     * fits, which gives the same result as {@code BigDecimal}.
      * 
      * @param f1 A valid number string
      * @param f2 A valid number string
@@ -160,6 +376,11 @@ public class Functions {
      * @see BigDecimal
      */
     public static String multiply(String f1, String f2) {
+        String ret = FixedDecimal.multiply(f1, f2);
+        if (ret != null) {
+            return ret;
+        }
+
         BigDecimal factor1;
         BigDecimal factor2;
 
@@ -0,0 +1,181 @@
+package org.agmip.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run independent tasks across the available cores and collect the results
+ * in the input order.
+ *
+ * A shared pool of daemon threads (one per core) is created on first use, and
+ * could be replaced by {@link #setExecutor(ExecutorService)} for all the
+ * callers in the process. The default pool is owned by this class and is shut
+ * down when it is replaced, while an executor given by the caller is owned by
+ * the caller and is never shut down here. Tasks submitted from inside a
+ * running task are executed on the calling thread, so nested parallel calls
+ * never wait on the pool they are running in.
+ */
+public final class ParallelTasks {
+
+    private static final ThreadLocal<Boolean> IN_TASK = new ThreadLocal<Boolean>();
+    private static ExecutorService executor;
+    private static boolean defaultExecutor;
+
+    /**
+     * Cannot instantiate this class.
+     */
+    private ParallelTasks() {
+    }
+
+    /**
+     * Set the executor used for the parallel tasks of all the callers. The
+     * default pool which is replaced is shut down after its running tasks,
+     * while the executor given by the caller stays owned by the caller and
+     * must be shut down by it after being replaced. This method must not be
+     * called while any parallel tasks are running, e.g. set it once at start
+     * up.
+     *
+     * @param executorService The executor, or {@code null} to use the default
+     * shared pool
+     */
+    public static void setExecutor(ExecutorService executorService) {
+        ExecutorService old;
+        boolean wasDefault;
+        synchronized (ParallelTasks.class) {
+            old = executor;
+            wasDefault = defaultExecutor;
+            executor = executorService;
+            defaultExecutor = false;
+        }
+        // Only shut down the replaced pool if it is owned by this class
+        if (wasDefault && old != null && old != executorService) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Get the executor used for the parallel tasks, the default shared pool
+     * is created if not set yet
+     *
+     * @return The executor
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory());
+            defaultExecutor = true;
+        }
+        return executor;
+    }
+
+    /**
+     * Run the tasks and wait for all of them to finish
+     *
+     * @param <T> The result type
+     * @param tasks The tasks
+     * @return The results, in the same order as the tasks
+     * @throws RuntimeException if any task failed or the calling thread was
+     * interrupted
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+        ArrayList<T> ret = new ArrayList<T>(tasks.size());
+        try {
+            if (tasks.size() <= 1 || isInTask()) {
+                for (Callable<T> task : tasks) {
+                    ret.add(task.call());
+                }
+                return ret;
+            }
+
+            ArrayList<Callable<T>> wrapped = new ArrayList<Callable<T>>(tasks.size());
+            for (Callable<T> task : tasks) {
+                wrapped.add(new MarkedTask<T>(task));
+            }
+            ExecutorService pool = getExecutor();
+            for (Future<T> future : pool.invokeAll(wrapped)) {
+                ret.add(future.get());
+            }
+            return ret;
+        } catch (ExecutionException ex) {
+            throw rethrow(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the tasks", ex);
+        } catch (Exception ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Wrap the task for the executor, so that the parallel calls made inside
+     * it run on its own thread like the tasks submitted by this class
+     *
+     * @param <T> The result type
+     * @param task The task
+     * @return The wrapped task
+     */
+    public static <T> Callable<T> asTask(Callable<T> task) {
+        return new MarkedTask<T>(task);
+    }
+
+    /**
+     * Check if the current thread is running a task submitted by this class
+     *
+     * @return True if running inside a task
+     */
+    public static boolean isInTask() {
+        return Boolean.TRUE.equals(IN_TASK.get());
+    }
+
+    private static RuntimeException rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new RuntimeException(cause);
+    }
+
+    /**
+     * Task wrapper which marks the worker thread while the task is running
+     */
+    private static class MarkedTask<T> implements Callable<T> {
+
+        private final Callable<T> task;
+
+        public MarkedTask(Callable<T> task) {
+            this.task = task;
+        }
+
+        public T call() throws Exception {
+            Boolean old = IN_TASK.get();
+            IN_TASK.set(Boolean.TRUE);
+            try {
+                return task.call();
+            } finally {
+                IN_TASK.set(old);
+            }
+        }
+    }
+
+    /**
+     * Create daemon threads for the default pool, so that it never blocks the
+     * JVM from exiting
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "agmip-functions-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
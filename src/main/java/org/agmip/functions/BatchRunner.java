@@ -0,0 +1,255 @@
+package org.agmip.functions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.agmip.common.ParallelTasks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Apply a function pipeline to a stream of experiments in parallel.
+ *
+ * The experiments are pulled from the input iterator only when there is room
+ * in the in-flight queue, so at most {@link #getMaxInFlight()} experiments are
+ * being processed or waiting to be taken at any time, regardless of the size
+ * of the input. The results are returned in the input order. Each experiment
+ * is processed by one task, and the parallel calls made inside the task run
+ * on its own thread, so the tasks never wait on each other.
+ *
+ * The input iterator and the returned results are only used by the calling
+ * thread.
+ */
+public class BatchRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchRunner.class);
+    private final FunctionPipeline pipeline;
+    private ExecutorService executor;
+    private int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Constructor
+     *
+     * @param pipeline The pipeline applied to each experiment
+     */
+    public BatchRunner(FunctionPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Set the executor which runs the experiments
+     *
+     * @param executor The executor, or {@code null} to use the shared pool of
+     * {@link ParallelTasks}
+     * @return This runner
+     */
+    public BatchRunner setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Get the executor which runs the experiments
+     *
+     * @return The executor
+     */
+    public ExecutorService getExecutor() {
+        return executor == null ? ParallelTasks.getExecutor() : executor;
+    }
+
+    /**
+     * Set the maximum number of experiments in flight
+     *
+     * @param maxInFlight The maximum number (at least 1), default is twice
+     * the number of cores
+     * @return This runner
+     */
+    public BatchRunner setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        return this;
+    }
+
+    /**
+     * Get the maximum number of experiments in flight
+     *
+     * @return The maximum number
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Apply the pipeline to the experiments, the experiments are processed
+     * while the results are iterated
+     *
+     * @param experiments The experiment data holders
+     * @return The results, in the input order
+     */
+    public Iterator<Result> run(Iterator<? extends HashMap> experiments) {
+        return new ResultIterator(experiments, getExecutor(), maxInFlight);
+    }
+
+    /**
+     * Apply the pipeline to all the experiments and wait for them to finish
+     *
+     * @param experiments The experiment data holders
+     * @return The number of experiments which failed
+     */
+    public int runAll(Iterator<? extends HashMap> experiments) {
+        int failed = 0;
+        Iterator<Result> results = run(experiments);
+        while (results.hasNext()) {
+            if (results.next().getError() != null) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * The result of one experiment
+     */
+    public static class Result {
+
+        private final int index;
+        private final HashMap data;
+        private final ArrayList<HashMap<String, ArrayList<String>>> plantingDates;
+        private final Exception error;
+
+        private Result(int index, HashMap data, ArrayList<HashMap<String, ArrayList<String>>> plantingDates, Exception error) {
+            this.index = index;
+            this.data = data;
+            this.plantingDates = plantingDates;
+            this.error = error;
+        }
+
+        /**
+         * Get the position of the experiment in the input
+         *
+         * @return The position (0-based)
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Get the experiment data holder, which is updated by the pipeline
+         *
+         * @return The data holder
+         */
+        public HashMap getData() {
+            return data;
+        }
+
+        /**
+         * Get the planting dates of each {@code AUTO_PDATE} step, see
+         * {@link FunctionPipeline#run(HashMap)}
+         *
+         * @return The planting dates, or {@code null} if failed
+         */
+        public ArrayList<HashMap<String, ArrayList<String>>> getPlantingDates() {
+            return plantingDates;
+        }
+
+        /**
+         * Get the error thrown by the pipeline
+         *
+         * @return The error, or {@code null} if succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Pull the experiments into the in-flight queue and return the results
+     * from the head of the queue
+     */
+    private class ResultIterator implements Iterator<Result> {
+
+        private final Iterator<? extends HashMap> experiments;
+        private final ExecutorService executor;
+        private final int maxInFlight;
+        private final ArrayDeque<Future<Result>> inFlight;
+        private int count;
+
+        public ResultIterator(Iterator<? extends HashMap> experiments, ExecutorService executor, int maxInFlight) {
+            this.experiments = experiments;
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
+            this.inFlight = new ArrayDeque<Future<Result>>(maxInFlight);
+        }
+
+        public boolean hasNext() {
+            fill();
+            return !inFlight.isEmpty();
+        }
+
+        public Result next() {
+            fill();
+            Future<Result> head = inFlight.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Result result;
+            try {
+                result = head.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the experiments", ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+            fill();
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fill() {
+            while (inFlight.size() < maxInFlight && experiments.hasNext()) {
+                Callable<Result> task = ParallelTasks.asTask(new ExperimentTask(count++, experiments.next()));
+                if (ParallelTasks.isInTask()) {
+                    // Never wait on the pool the caller is running in
+                    FutureTask<Result> future = new FutureTask<Result>(task);
+                    future.run();
+                    inFlight.add(future);
+                } else {
+                    inFlight.add(executor.submit(task));
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the pipeline to one experiment
+     */
+    private class ExperimentTask implements Callable<Result> {
+
+        private final int index;
+        private final HashMap data;
+
+        public ExperimentTask(int index, HashMap data) {
+            this.index = index;
+            this.data = data;
+        }
+
+        public Result call() {
+            try {
+                return new Result(index, data, pipeline.run(data), null);
+            } catch (Exception ex) {
+                LOG.error("FAILED TO APPLY THE FUNCTIONS TO EXPERIMENT [" + index + "]", ex);
+                return new Result(index, data, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.agmip.functions;
+
+import java.util.Arrays;
+import org.agmip.common.AgmipDateCodec;
+import static org.agmip.common.Functions.*;
+
+/**
+ * Date index over the epoch-day column of daily records, which finds the
+ * record index for a date in constant time.
+ *
+ * Gaps in the records are allowed. When the dates are not in strictly
+ * ascending order, or contain invalid dates, the index falls back to linear
+ * search with the same results.
+ */
+public class DailyDateIndex {
+
+    private final int[] dates;
+    private final boolean sorted;
+    private final int first;
+    private final int[] ceiling;
+
+    /**
+     * Constructor
+     *
+     * @param dates The epoch days of the daily records
+     */
+    public DailyDateIndex(int[] dates) {
+        this.dates = dates;
+        boolean isSorted = dates.length > 0;
+        for (int i = 0; i < dates.length && isSorted; i++) {
+            isSorted = dates[i] != INVALID_DATE && (i == 0 || dates[i - 1] < dates[i]);
+        }
+        sorted = isSorted;
+
+        // Only build the dense table when it is not much larger than the data
+        if (sorted && dates[dates.length - 1] - dates[0] <= 4 * dates.length + 366) {
+            first = dates[0];
+            ceiling = new int[dates[dates.length - 1] - first + 1];
+            int idx = 0;
+            for (int i = 0; i < ceiling.length; i++) {
+                while (dates[idx] < first + i) {
+                    idx++;
+                }
+                ceiling[i] = idx;
+            }
+        } else {
+            first = 0;
+            ceiling = null;
+        }
+    }
+
+    /**
+     * Get the number of daily records
+     *
+     * @return The number of records
+     */
+    public int size() {
+        return dates.length;
+    }
+
+    /**
+     * Find the index of the record for the date
+     *
+     * @param epochDay The epoch day of the date
+     * @return The index of the record, or -1 if there is no record for the
+     * date
+     */
+    public int indexOf(int epochDay) {
+        int idx = ceilingIndex(epochDay);
+        if (idx < dates.length && dates[idx] == epochDay) {
+            return idx;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the index of the first record on or after the date
+     *
+     * @param epochDay The epoch day of the date
+     * @return The index of the record, or the number of records if there is
+     * no record on or after the date
+     */
+    public int ceilingIndex(int epochDay) {
+        if (ceiling != null) {
+            if (epochDay <= first) {
+                return 0;
+            } else if (epochDay - first >= ceiling.length) {
+                return dates.length;
+            }
+            return ceiling[epochDay - first];
+        } else if (sorted) {
+            int idx = Arrays.binarySearch(dates, epochDay);
+            return idx < 0 ? -idx - 1 : idx;
+        } else {
+            for (int i = 0; i < dates.length; i++) {
+                if (dates[i] != INVALID_DATE && dates[i] >= epochDay) {
+                    return i;
+                }
+            }
+            return dates.length;
+        }
+    }
+
+    /**
+     * Find the index of the first record on or after the month and day in
+     * the year
+     *
+     * @param year The year
+     * @param monthDay The month and day in the form of MMDD
+     * @return The index of the record, or the number of records if there is
+     * no record on or after the date
+     */
+    public int ceilingIndex(int year, int monthDay) {
+        return ceilingIndex(toEpochDay(year, monthDay));
+    }
+
+    /**
+     * Get the epoch day of the month and day in the year. February 29th is
+     * taken as February 28th in the years which are not leap years.
+     *
+     * @param year The year
+     * @param monthDay The month and day in the form of MMDD
+     * @return The epoch day
+     */
+    public static int toEpochDay(int year, int monthDay) {
+        int month = monthDay / 100;
+        int day = Math.min(monthDay % 100, AgmipDateCodec.lengthOfMonth(year, month));
+        return AgmipDateCodec.toEpochDay(year, month, day);
+    }
+
+    /**
+     * Get the year of the epoch day
+     *
+     * @param epochDay The epoch day
+     * @return The year
+     */
+    public static int getYear(int epochDay) {
+        return AgmipDateCodec.toYmd(epochDay) / 10000;
+    }
+}
@@ -0,0 +1,140 @@
+package org.agmip.functions;
+
+import java.util.List;
+import java.util.Map;
+import static org.agmip.common.Functions.*;
+import static org.agmip.util.MapUtil.*;
+
+/**
+ * Column view of the daily weather records, which is parsed once from the
+ * {@code dailyWeather} array so that the calculations can run on primitive
+ * arrays.
+ *
+ * The dates are stored as epoch days ({@link #INVALID_DATE} if invalid). The
+ * values are stored as {@code double}, and a missing or invalid value is
+ * stored as {@link #INVALID_NUMBER} with its bit set in the missing-value
+ * bitmap. A record without rain value is taken as 0 mm rain, which is how the
+ * auto-planting function has always treated it.
+ */
+public class DailyWeatherColumns {
+
+    public static final int RAIN = 0;
+    public static final int TMAX = 1;
+    public static final int TMIN = 2;
+    public static final int SRAD = 3;
+    private static final String[] VARIABLES = {"rain", "tmax", "tmin", "srad"};
+    private final int size;
+    private final int[] dates;
+    private final double[][] values;
+    private final long[] missing;
+    private final DailyDateIndex dateIndex;
+
+    /**
+     * Constructor, parse all the daily records in one pass
+     *
+     * @param dailyData The array of daily weather data
+     */
+    public DailyWeatherColumns(List<Map> dailyData) {
+        size = dailyData.size();
+        dates = new int[size];
+        values = new double[VARIABLES.length][size];
+        missing = new long[(size * VARIABLES.length + 63) >>> 6];
+        for (int i = 0; i < size; i++) {
+            Map rec = dailyData.get(i);
+            dates[i] = toEpochDay(getValueOr(rec, "w_date", ""));
+            for (int col = 0; col < VARIABLES.length; col++) {
+                String value = getValueOr(rec, VARIABLES[col], col == RAIN ? "0" : "");
+                double dValue = toDouble(value);
+                values[col][i] = dValue;
+                if (Double.isNaN(dValue)) {
+                    int bit = i * VARIABLES.length + col;
+                    missing[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+        dateIndex = new DailyDateIndex(dates);
+    }
+
+    /**
+     * Get the number of daily records
+     *
+     * @return The number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the epoch days of all records
+     *
+     * @return The date column (shared, do not modify)
+     */
+    public int[] getDates() {
+        return dates;
+    }
+
+    /**
+     * Get the epoch day of the record
+     *
+     * @param index The record index
+     * @return The epoch day or {@link #INVALID_DATE}
+     */
+    public int getDate(int index) {
+        return dates[index];
+    }
+
+    /**
+     * Get the date index over the records
+     *
+     * @return The date index
+     */
+    public DailyDateIndex getDateIndex() {
+        return dateIndex;
+    }
+
+    /**
+     * Get the AgMIP date string (YYYYMMDD) of the record
+     *
+     * @param index The record index
+     * @return The date string, or empty string if the date is invalid
+     */
+    public String getDateString(int index) {
+        if (dates[index] == INVALID_DATE) {
+            return "";
+        }
+        return appendAgmipDate(dates[index], new StringBuilder(8)).toString();
+    }
+
+    /**
+     * Get the values of a variable column
+     *
+     * @param column The column, one of {@link #RAIN}, {@link #TMAX},
+     * {@link #TMIN} and {@link #SRAD}
+     * @return The value column (shared, do not modify)
+     */
+    public double[] getColumn(int column) {
+        return values[column];
+    }
+
+    /**
+     * Get the rainfall amount column (mm)
+     *
+     * @return The rain column (shared, do not modify)
+     */
+    public double[] getRain() {
+        return values[RAIN];
+    }
+
+    /**
+     * Check if the variable value of the record is missing or invalid
+     *
+     * @param column The column, one of {@link #RAIN}, {@link #TMAX},
+     * {@link #TMIN} and {@link #SRAD}
+     * @param index The record index
+     * @return True if the value is missing or invalid
+     */
+    public boolean isMissing(int column, int index) {
+        int bit = index * VARIABLES.length + column;
+        return (missing[bit >>> 6] & (1L << bit)) != 0;
+    }
+}
@@ -0,0 +1,208 @@
+package org.agmip.functions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.agmip.common.EventIndex;
+import static org.agmip.common.Functions.*;
+import static org.agmip.util.MapUtil.*;
+
+/**
+ * The parsed forms of an experiment data holder, which are built on first use
+ * and shared by the helper functions called on the same experiment.
+ *
+ * The event index, the rainfall index of the weather data and the soil
+ * profile are rebuilt when the array they were built from is replaced or
+ * changes its size. The numeric values are parsed again when the raw value is
+ * changed. The changes made through the helper functions which take this
+ * context are kept in the cached forms. If the events or the soil layers are
+ * modified in place by other code, call {@link #invalidate()}.
+ *
+ * The context is not thread-safe.
+ */
+public class ExperimentContext {
+
+    private final HashMap data;
+    private EventIndex eventIndex;
+    private Object eventSource;
+    private RainfallIndex rainIndex;
+    private ArrayList<Map> rainSource;
+    private int rainSourceSize;
+    private SoilProfile soilProfile;
+    private Object soilSource;
+    private final HashMap<String, Scalar> scalars = new HashMap<String, Scalar>();
+
+    /**
+     * Constructor
+     *
+     * @param data The experiment data holder
+     */
+    public ExperimentContext(HashMap data) {
+        this.data = data;
+    }
+
+    /**
+     * Get the experiment data holder
+     *
+     * @return The data holder
+     */
+    public HashMap getData() {
+        return data;
+    }
+
+    /**
+     * Get the index of the management events, see
+     * {@link ExperimentHelper#getEventIndex(Map)}
+     *
+     * @return The event index
+     */
+    public EventIndex getEventIndex() {
+        Object source = getSource("management", "events");
+        if (eventIndex == null || source != eventSource) {
+            eventIndex = ExperimentHelper.getEventIndex(data);
+            eventSource = source;
+        }
+        return eventIndex;
+    }
+
+    /**
+     * Get the rainfall index of the daily weather data, see
+     * {@link ExperimentHelper#getRainfallIndex(Map)}
+     *
+     * @return The rainfall index, or {@code null} if the daily weather data
+     * is not available
+     */
+    public RainfallIndex getRainfallIndex() {
+        ArrayList<Map> dailyData = ExperimentHelper.getDailyWeather(data);
+        if (dailyData == null) {
+            rainIndex = null;
+        } else if (rainIndex == null || dailyData != rainSource || dailyData.size() != rainSourceSize) {
+            rainIndex = new RainfallIndex(new DailyWeatherColumns(dailyData));
+            rainSource = dailyData;
+            rainSourceSize = dailyData.size();
+        }
+        return rainIndex;
+    }
+
+    /**
+     * Get the daily weather columns, see {@link #getRainfallIndex()}
+     *
+     * @return The weather columns, or {@code null} if the daily weather data
+     * is not available
+     */
+    public DailyWeatherColumns getWeatherColumns() {
+        RainfallIndex index = getRainfallIndex();
+        return index == null ? null : index.getWeather();
+    }
+
+    /**
+     * Get the soil profile of the first soil site, see
+     * {@link SoilHelper#getSoilProfile(Map)}
+     *
+     * @return The soil profile, or {@code null} if the soil data is not
+     * available
+     */
+    public SoilProfile getSoilProfile() {
+        Object source = getSource("soil", "soilLayer");
+        if (soilProfile == null || source != soilSource
+                || (source instanceof List && soilProfile.size() != ((List) source).size())) {
+            soilProfile = SoilHelper.getSoilProfile(data);
+            soilSource = source;
+        }
+        return soilProfile;
+    }
+
+    /**
+     * Get the numeric value of the variable in the data holder
+     *
+     * @param var The variable name
+     * @return The value, or {@link #INVALID_NUMBER} if missing or invalid
+     */
+    public double getDouble(String var) {
+        Scalar scalar = getScalar(var);
+        if (!scalar.parsedDouble) {
+            scalar.doubleValue = toDouble(scalar.raw);
+            scalar.parsedDouble = true;
+        }
+        return scalar.doubleValue;
+    }
+
+    /**
+     * Get the integer value of the variable in the data holder
+     *
+     * @param var The variable name
+     * @return The value, or {@link #INVALID_INT} if missing or invalid
+     */
+    public int getInt(String var) {
+        Scalar scalar = getScalar(var);
+        if (!scalar.parsedInt) {
+            scalar.intValue = toInt(scalar.raw);
+            scalar.parsedInt = true;
+        }
+        return scalar.intValue;
+    }
+
+    /**
+     * Get the year from the first four characters of the variable in the
+     * data holder
+     *
+     * @param var The variable name
+     * @return The year, or {@link #INVALID_INT} if missing or invalid
+     */
+    public int getYear(String var) {
+        Scalar scalar = getScalar(var);
+        if (!scalar.parsedYear) {
+            scalar.yearValue = toInt(scalar.raw, 0, 4);
+            scalar.parsedYear = true;
+        }
+        return scalar.yearValue;
+    }
+
+    /**
+     * Drop all the cached forms, so that they are built again from the data
+     * holder on next use
+     */
+    public void invalidate() {
+        eventIndex = null;
+        eventSource = null;
+        rainIndex = null;
+        rainSource = null;
+        soilProfile = null;
+        soilSource = null;
+        scalars.clear();
+    }
+
+    private Object getSource(String bucket, String var) {
+        Object map = data.get(bucket);
+        return map instanceof Map ? ((Map) map).get(var) : null;
+    }
+
+    private Scalar getScalar(String var) {
+        String raw = getValueOr(data, var, "");
+        Scalar scalar = scalars.get(var);
+        if (scalar == null || !scalar.raw.equals(raw)) {
+            scalar = new Scalar(raw);
+            scalars.put(var, scalar);
+        }
+        return scalar;
+    }
+
+    /**
+     * The raw value of a variable and its parsed forms
+     */
+    private static class Scalar {
+
+        private final String raw;
+        private boolean parsedDouble;
+        private double doubleValue;
+        private boolean parsedInt;
+        private int intValue;
+        private boolean parsedYear;
+        private int yearValue;
+
+        public Scalar(String raw) {
+            this.raw = raw;
+        }
+    }
+}
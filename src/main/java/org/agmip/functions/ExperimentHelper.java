@@ -3,15 +3,21 @@ package org.agmip.functions;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import org.agmip.common.AgmipDateCodec;
+import org.agmip.common.DecimalFormatter;
 import org.agmip.common.Event;
+import org.agmip.common.EventIndex;
+import org.agmip.common.ParallelTasks;
 import static org.agmip.common.Functions.*;
 import static org.agmip.functions.SoilHelper.*;
 import static org.agmip.util.MapUtil.*;
-import org.agmip.ace.util.AcePathfinderUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +30,7 @@ import org.slf4j.LoggerFactory;
 public class ExperimentHelper {
 
     private static final Logger LOG = LoggerFactory.getLogger(ExperimentHelper.class);
+    private static final String[] FERT_EVENT_KEYS = {"date", "fecd", "feacd", "fedep", "feamn"};
 
     /**
      * This function will calculate the planting date which is the first date
@@ -32,7 +39,7 @@ public class ExperimentHelper {
      *
      * @param eDate Earliest planting date (mm-dd or mmdd)
      * @param lDate Latest planting date (mm-dd or mmdd)
-     * @param rain Threshold rainfall amount (mm)
+     * @param rain Threshold rainfall amount (mm), rounded to 0.001 mm
      * @param days Number of days of accumulation
      * @param wthData The HashMap of experiment (including weather data)
      *
@@ -40,111 +47,279 @@ public class ExperimentHelper {
      * weather data.
      */
     public static HashMap<String, ArrayList<String>> getAutoPlantingDate(String eDate, String lDate, String rain, String days, Map data) {
+        RainfallIndex rainIndex = getRainfallIndex(data);
+        if (rainIndex == null) {
+            return new HashMap<String, ArrayList<String>>();
+        }
+        return getAutoPlantingDate(eDate, lDate, rain, days, data, rainIndex);
+    }
 
-        Map wthData;
-        ArrayList<Map> dailyData;
-        ArrayList<Map> eventData;
-        Event event;
-        Calendar eDateCal = Calendar.getInstance();
-        Calendar lDateCal = Calendar.getInstance();
-        int intDays;
-        int duration;
-        double accRainAmtTotal;
-        double accRainAmt;
-        int expDur;
-        int startYear = 0;
-        Window[] windows;
-        ArrayList<String> pdates = new ArrayList<String>();
-        HashMap<String, ArrayList<String>> results = new HashMap<String, ArrayList<String>>();
+    /**
+     * This function will calculate the planting date which is the first date
+     * within the planting window<br/> that has an accumulated rainfall amount
+     * (P) in the previous n days. The rainfall index of the weather data is
+     * given, so that it could be reused by the calls with different
+     * parameters.
+     *
+     * @param eDate Earliest planting date (mm-dd or mmdd)
+     * @param lDate Latest planting date (mm-dd or mmdd)
+     * @param rain Threshold rainfall amount (mm), rounded to 0.001 mm
+     * @param days Number of days of accumulation
+     * @param data The HashMap of experiment
+     * @param rainIndex The rainfall index of the weather data, see
+     * {@link #getRainfallIndex(Map)}
+     *
+     * @return An {@code ArrayList} of {@code pdate} for each year in the
+     * weather data.
+     */
+    public static HashMap<String, ArrayList<String>> getAutoPlantingDate(String eDate, String lDate, String rain, String days, Map data, RainfallIndex rainIndex) {
+        return getAutoPlantingDate(eDate, lDate, rain, days, data, rainIndex, getEventIndex(data));
+    }
 
+    /**
+     * This function will calculate the planting date which is the first date
+     * within the planting window<br/> that has an accumulated rainfall amount
+     * (P) in the previous n days. The rainfall index of the weather data and
+     * the index of the management events are given, so that they could be
+     * shared with other calls on the same experiment.
+     *
+     * @param eDate Earliest planting date (mm-dd or mmdd)
+     * @param lDate Latest planting date (mm-dd or mmdd)
+     * @param rain Threshold rainfall amount (mm), rounded to 0.001 mm
+     * @param days Number of days of accumulation
+     * @param data The HashMap of experiment
+     * @param rainIndex The rainfall index of the weather data, see
+     * {@link #getRainfallIndex(Map)}
+     * @param eventIndex The index of the management events, see
+     * {@link #getEventIndex(Map)}
+     *
+     * @return An {@code ArrayList} of {@code pdate} for each year in the
+     * weather data.
+     */
+    public static HashMap<String, ArrayList<String>> getAutoPlantingDate(String eDate, String lDate, String rain, String days, Map data, RainfallIndex rainIndex, EventIndex eventIndex) {
+        PlantingSetup setup = getPlantingSetup(data, eventIndex).withWeather(rainIndex);
+        if (setup == null) {
+            return new HashMap<String, ArrayList<String>>();
+        }
+        return getAutoPlantingDate(eDate, lDate, rain, days, setup, 0);
+    }
 
+    /**
+     * This function will calculate the planting date which is the first date
+     * within the planting window<br/> that has an accumulated rainfall amount
+     * (P) in the previous n days. The planting windows of the years are
+     * searched in parallel when there are at least {@code parallelThreshold}
+     * of them, e.g. for a long {@code exp_dur}, and the result is the same as
+     * the sequential search.
+     *
+     * @param eDate Earliest planting date (mm-dd or mmdd)
+     * @param lDate Latest planting date (mm-dd or mmdd)
+     * @param rain Threshold rainfall amount (mm), rounded to 0.001 mm
+     * @param days Number of days of accumulation
+     * @param data The HashMap of experiment (including weather data)
+     * @param parallelThreshold The minimum number of windows (years) to search
+     * them in parallel, or 0 to always search them sequentially
+     *
+     * @return An {@code ArrayList} of {@code pdate} for each year in the
+     * weather data.
+     */
+    public static HashMap<String, ArrayList<String>> getAutoPlantingDate(String eDate, String lDate, String rain, String days, Map data, int parallelThreshold) {
+        RainfallIndex rainIndex = getRainfallIndex(data);
+        if (rainIndex == null) {
+            return new HashMap<String, ArrayList<String>>();
+        }
+        PlantingSetup setup = getPlantingSetup(data, getEventIndex(data)).withWeather(rainIndex);
+        if (setup == null) {
+            return new HashMap<String, ArrayList<String>>();
+        }
+        return getAutoPlantingDate(eDate, lDate, rain, days, setup, parallelThreshold);
+    }
 
-        // Validation for input parameters
-        // Weather data check and try to get daily data
-        if (data.isEmpty()) {
-            LOG.error("NO ANY DATA.");
+    /**
+     * This function will calculate the planting date which is the first date
+     * within the planting window<br/> that has an accumulated rainfall amount
+     * (P) in the previous n days. The parsed weather data, events and
+     * numeric values are taken from the experiment context.
+     *
+     * @param eDate Earliest planting date (mm-dd or mmdd)
+     * @param lDate Latest planting date (mm-dd or mmdd)
+     * @param rain Threshold rainfall amount (mm), rounded to 0.001 mm
+     * @param days Number of days of accumulation
+     * @param context The context of the experiment
+     *
+     * @return An {@code ArrayList} of {@code pdate} for each year in the
+     * weather data.
+     */
+    public static HashMap<String, ArrayList<String>> getAutoPlantingDate(String eDate, String lDate, String rain, String days, ExperimentContext context) {
+        RainfallIndex rainIndex = context.getRainfallIndex();
+        if (rainIndex == null) {
             return new HashMap<String, ArrayList<String>>();
-        } else {
-            // Case for multiple data json structure
-            if (data.containsKey("weathers")) {
-                ArrayList<Map> wths = getObjectOr(data, "weathers", new ArrayList());
-                if (wths.isEmpty()) {
-                    LOG.error("NO WEATHER DATA.");
-                    return new HashMap<String, ArrayList<String>>();
-                } else {
-                    wthData = wths.get(0);
-                    if (wthData.isEmpty()) {
-                        LOG.error("NO WEATHER DATA.");
+        }
+        PlantingSetup setup = getPlantingSetup(context.getEventIndex(), context.getInt("exp_dur"), context.getYear("sc_year")).withWeather(rainIndex);
+        if (setup == null) {
+            return new HashMap<String, ArrayList<String>>();
+        }
+        return getAutoPlantingDate(eDate, lDate, rain, days, setup, 0);
+    }
+
+    /**
+     * This function will calculate the planting dates for a list of parameter
+     * sets on the same experiment data. The weather data is parsed and
+     * indexed only once, and the parameter sets are calculated in parallel.
+     *
+     * @param paramSets The list of parameter sets, each of them is an array of
+     * earliest planting date (mm-dd or mmdd), latest planting date (mm-dd or
+     * mmdd), threshold rainfall amount (mm) and number of days of accumulation
+     * @param data The HashMap of experiment (including weather data)
+     *
+     * @return An {@code ArrayList} of the results for each parameter set, in
+     * the same order as the input, see
+     * {@link #getAutoPlantingDate(String, String, String, String, Map)}
+     */
+    public static ArrayList<HashMap<String, ArrayList<String>>> getAutoPlantingDates(List<String[]> paramSets, Map data) {
+        ArrayList<HashMap<String, ArrayList<String>>> results = new ArrayList<HashMap<String, ArrayList<String>>>(paramSets.size());
+        RainfallIndex rainIndex = getRainfallIndex(data);
+        final PlantingSetup setup = rainIndex == null ? null : getPlantingSetup(data, getEventIndex(data)).withWeather(rainIndex);
+        if (setup == null) {
+            for (int i = 0; i < paramSets.size(); i++) {
+                results.add(new HashMap<String, ArrayList<String>>());
+            }
+            return results;
+        }
+
+        ArrayList<Callable<HashMap<String, ArrayList<String>>>> tasks = new ArrayList<Callable<HashMap<String, ArrayList<String>>>>(paramSets.size());
+        for (final String[] params : paramSets) {
+            tasks.add(new Callable<HashMap<String, ArrayList<String>>>() {
+                public HashMap<String, ArrayList<String>> call() {
+                    if (params == null || params.length < 4) {
+                        LOG.error("INVALID PARAMETER SET FOR AUTO PLANTING DATE");
                         return new HashMap<String, ArrayList<String>>();
-                    } else {
-                        dailyData = getObjectOr(wthData, "dailyWeather", new ArrayList());
                     }
+                    return getAutoPlantingDate(params[0], params[1], params[2], params[3], setup, 0);
                 }
-            } else {
-                HashMap<String, Object> weather = (HashMap<String, Object>) getObjectOr(data, "weather", new HashMap<String, Object>());
-                if (weather.isEmpty()) {
-                    LOG.error("NO WEATHER DATA.");
-                    return new HashMap<String, ArrayList<String>>();
-                }
-                dailyData = (ArrayList<Map>) getObjectOr(weather, "dailyWeather", new ArrayList());
-            }
-
-            if (dailyData.isEmpty()) {
-                LOG.error("EMPTY DAILY WEATHER DATA.");
-                return new HashMap<String, ArrayList<String>>();
-            }
+            });
         }
+        results.addAll(ParallelTasks.invokeAll(tasks));
+        return results;
+    }
+
+    /**
+     * This function will calculate the planting dates for every weather
+     * station in the data holder. In the multiple data json structure, all
+     * the entries of {@code weathers} are used, otherwise the single
+     * {@code weather} is used. The stations are calculated in parallel.
+     *
+     * @param eDate Earliest planting date (mm-dd or mmdd)
+     * @param lDate Latest planting date (mm-dd or mmdd)
+     * @param rain Threshold rainfall amount (mm), rounded to 0.001 mm
+     * @param days Number of days of accumulation
+     * @param data The HashMap of experiment (including weather data)
+     *
+     * @return A {@code LinkedHashMap} of the results keyed by
+     * {@code wst_id}, in the order of the weather stations, see
+     * {@link #getAutoPlantingDate(String, String, String, String, Map)}
+     */
+    public static LinkedHashMap<String, HashMap<String, ArrayList<String>>> getAutoPlantingDateByStation(final String eDate, final String lDate, final String rain, final String days, Map data) {
+        LinkedHashMap<String, HashMap<String, ArrayList<String>>> results = new LinkedHashMap<String, HashMap<String, ArrayList<String>>>();
+        ArrayList<Map> wths;
 
-        // Check experiment data
         // Case for multiple data json structure
-        Map mgnData = getObjectOr(data, "management", new HashMap());
-        eventData = getObjectOr(mgnData, "events", new ArrayList());
-        
-        // Remove all planting events, for now, as a default. This is because this generates new replaced planting events.
-        // NOTE: This is the "safest" way to remove items during iteration.
-        Iterator<Map> iter = eventData.iterator();
-        while( iter.hasNext()) {
-            if (getValueOr(iter.next(), "event", "").equals("planting")) {
-                iter.remove();
+        if (data.containsKey("weathers")) {
+            wths = getObjectOr(data, "weathers", new ArrayList());
+        } else {
+            wths = new ArrayList<Map>();
+            wths.add(getObjectOr(data, "weather", new HashMap()));
+        }
+
+        final PlantingSetup setup = getPlantingSetup(data, getEventIndex(data));
+        ArrayList<String> wstIds = new ArrayList<String>(wths.size());
+        HashSet<String> usedIds = new HashSet<String>();
+        ArrayList<Callable<HashMap<String, ArrayList<String>>>> tasks = new ArrayList<Callable<HashMap<String, ArrayList<String>>>>(wths.size());
+        for (Map wthData : wths) {
+            final String wstId = getValueOr(wthData, "wst_id", "");
+            final ArrayList<Map> dailyData = getObjectOr(wthData, "dailyWeather", new ArrayList());
+            if (!usedIds.add(wstId)) {
+                LOG.warn("DUPLICATED WEATHER STATION:[" + wstId + "], ONLY THE LAST ONE IS USED");
             }
+            wstIds.add(wstId);
+            tasks.add(new Callable<HashMap<String, ArrayList<String>>>() {
+                public HashMap<String, ArrayList<String>> call() {
+                    if (dailyData.isEmpty()) {
+                        LOG.error("EMPTY DAILY WEATHER DATA FOR STATION:[" + wstId + "]");
+                        return new HashMap<String, ArrayList<String>>();
+                    }
+                    PlantingSetup wstSetup = setup.withWeather(new RainfallIndex(new DailyWeatherColumns(dailyData)));
+                    if (wstSetup == null) {
+                        return new HashMap<String, ArrayList<String>>();
+                    }
+                    return getAutoPlantingDate(eDate, lDate, rain, days, wstSetup, 0);
+                }
+            });
         }
 
+        List<HashMap<String, ArrayList<String>>> wstResults = ParallelTasks.invokeAll(tasks);
+        for (int i = 0; i < wstIds.size(); i++) {
+            results.put(wstIds.get(i), wstResults.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Prepare the part of the auto planting date calculation which depends on
+     * neither the parameters nor the weather data. The existing planting
+     * events are removed from the experiment data.
+     *
+     * @param data The HashMap of experiment
+     * @param eventIndex The index of the management events
+     *
+     * @return The prepared setup without weather data
+     */
+    private static PlantingSetup getPlantingSetup(Map data, EventIndex eventIndex) {
+        return getPlantingSetup(eventIndex, toInt(getValueOr(data, "exp_dur", "1")), toInt(getValueOr(data, "sc_year", ""), 0, 4));
+    }
+
+    /**
+     * Prepare the part of the auto planting date calculation which depends on
+     * neither the parameters nor the weather data, with the parsed
+     * {@code exp_dur} and the year of {@code sc_year}
+     */
+    private static PlantingSetup getPlantingSetup(EventIndex eventIndex, int expDur, int scYear) {
+
+        Event event;
+        int startYear = 0;
+
+        // Remove all planting events, for now, as a default. This is because this generates new replaced planting events.
+        eventIndex.removeAll("planting");
+
         // Check EXP_DUR is avalaible
-        try {
-            expDur = Integer.parseInt(getValueOr(data, "exp_dur", "1"));
-        } catch (Exception e) {
+        if (expDur == INVALID_INT) {
             expDur = 1;
         }
 
         LOG.debug("EXP_DUR FOUND: {}", expDur);
 
-                // The starting year for multiple year runs may be set with SC_YEAR.
+        // The starting year for multiple year runs may be set with SC_YEAR.
         if (expDur > 1) {
-            try {
-                startYear = Integer.parseInt(getValueOr(data, "sc_year", "").substring(0, 4));
-            } catch (Exception e) {
+            startYear = scYear;
+            if (startYear == INVALID_INT) {
                 startYear = 0;
             }
         }
 
         LOG.debug("START YEAR: {}", startYear);
-        windows = new Window[expDur];
-
-        
 
         // Check if there is eventData existing
-        if (eventData.isEmpty()) {
+        if (eventIndex.size() == 0) {
             LOG.warn("EMPTY EVENT DATA.");
             event = new Event(new ArrayList(), "planting");
         } else {
-            event = new Event(eventData, "planting");
+            event = new Event(eventIndex, "planting");
             // If only one year is to be simulated, the recorded planting date year will be used (if available).
             if (expDur == 1) {
                 if (event.isEventExist()) {
                     Map plEvent = event.getCurrentEvent();
-                    try {
-                        startYear = Integer.parseInt(getValueOr(plEvent, "date", "").substring(0, 4));
-                    } catch (Exception e) {
+                    startYear = toInt(getValueOr(plEvent, "date", ""), 0, 4);
+                    if (startYear == INVALID_INT) {
                         startYear = 0;
                     }
                 } else {
@@ -153,151 +328,280 @@ public class ExperimentHelper {
             }
         }
 
-        // If no starting year is provided, the multiple years will begin on the first available weather year.
-        int startYearIndex;
-        if (startYear == 0) {
-            startYearIndex = 0;
+        return new PlantingSetup(null, expDur, startYear, 0);
+    }
+
+    /**
+     * Calculate the planting dates with the prepared setup, the windows are
+     * searched in parallel when there are at least {@code parallelThreshold}
+     * of them (0 to always search them sequentially)
+     */
+    private static HashMap<String, ArrayList<String>> getAutoPlantingDate(String eDate, String lDate, String rain, String days, PlantingSetup setup, int parallelThreshold) {
+
+        RainfallIndex rainIndex = setup.rainIndex;
+        DailyWeatherColumns wthCols = rainIndex.getWeather();
+        DailyDateIndex dateIndex = wthCols.getDateIndex();
+        int eMonthDay;
+        int lMonthDay;
+        int intDays;
+        double accRainAmtTotal;
+        Window[] windows = new Window[setup.expDur];
+        ArrayList<String> pdates = new ArrayList<String>();
+        HashMap<String, ArrayList<String>> results = new HashMap<String, ArrayList<String>>();
+
+        // Check input dates
+        eMonthDay = parseMonthDay(eDate, "-");
+        if (eMonthDay == INVALID_INT) {
+            LOG.error("INVALID EARLIST DATE:[" + eDate + "]");
+            return new HashMap<String, ArrayList<String>>();
+        }
+        lMonthDay = parseMonthDay(lDate, "-");
+        if (lMonthDay == INVALID_INT) {
+            LOG.error("INVALID LATEST DATE:[" + lDate + "]");
+            return new HashMap<String, ArrayList<String>>();
+        }
+
+        // Check Number of days of accumulation
+        intDays = toInt(days);
+        if (intDays == INVALID_INT) {
+            LOG.error("INVALID NUMBER FOR NUMBER OF DAYS OF ACCUMULATION");
+            return new HashMap<String, ArrayList<String>>();
+        }
+        if (intDays <= 0) {
+            LOG.error("NON-POSITIVE NUMBER FOR NUMBER OF DAYS OF ACCUMULATION");
+            return new HashMap<String, ArrayList<String>>();
+        }
+
+        // Check Threshold rainfall amount
+        accRainAmtTotal = toDouble(rain);
+        if (Double.isNaN(accRainAmtTotal)) {
+            LOG.error("INVALID NUMBER FOR THRESHOLD RAINFALL AMOUNT");
+            return new HashMap<String, ArrayList<String>>();
+        }
+        if (RainfallIndex.toUnits(accRainAmtTotal) <= 0) {
+            // The rainfall is summed in 0.001 mm, so a smaller amount is 0
+            LOG.error("NON-POSITIVE NUMBER FOR THRESHOLD RAINFALL AMOUNT");
+            return new HashMap<String, ArrayList<String>>();
+        }
+
+        // Find the first record which is the ealiest date for the window in each year
+        int year = DailyDateIndex.getYear(wthCols.getDate(setup.startYearIndex));
+        if (DailyDateIndex.toEpochDay(year, eMonthDay) < wthCols.getDate(setup.startYearIndex)) {
+            year++;
+        }
+        for (int i = 0; i < windows.length; i++, year++) {
+            // The window may end in the next year
+            int start = dateIndex.ceilingIndex(year, eMonthDay);
+            int end = dateIndex.ceilingIndex(lMonthDay < eMonthDay ? year + 1 : year, lMonthDay);
+            windows[i] = new Window(start, end);
+        }
+
+        if (windows[0].start == wthCols.size()) {
+            LOG.error("NO VALID DAILY DATA FOR SEARCH WINDOW");
+            return new HashMap<String, ArrayList<String>>();
+        }
+
+        // Loop each window to try to find appropriate planting date
+        String[] found = new String[windows.length];
+        if (parallelThreshold > 0 && windows.length >= parallelThreshold) {
+            searchWindowsParallel(rainIndex, windows, intDays, accRainAmtTotal, found);
         } else {
-            startYearIndex = dailyData.size();
-            for (int i = 0; i < dailyData.size(); i++) {
-                String w_date = getValueOr(dailyData.get(i), "w_date", "");
-                if (w_date.equals(startYear + "0101")) {
-                    startYearIndex = i;
-                    break;
-                } else if (w_date.endsWith("0101")) {
-                    i += 364;
+            searchWindows(rainIndex, windows, 0, windows.length, intDays, accRainAmtTotal, found);
+        }
+        pdates.addAll(Arrays.asList(found));
+        results.put("pdate", pdates);
+        return results;
+    }
+
+    /**
+     * Search the planting date in the windows within the range
+     *
+     * @param rainIndex The rainfall index of the weather data
+     * @param windows The search windows
+     * @param from The first window index, inclusive
+     * @param to The last window index, exclusive
+     * @param days Number of days of accumulation
+     * @param rain Threshold rainfall amount (mm), rounded to 0.001 mm
+     * @param pdates The array to store the planting date for each window
+     */
+    private static void searchWindows(RainfallIndex rainIndex, Window[] windows, int from, int to, int days, double rain, String[] pdates) {
+        DailyWeatherColumns wthCols = rainIndex.getWeather();
+        for (int i = from; i < to; i++) {
+            int found = rainIndex.findFirst(windows[i].start, windows[i].end, days, rain);
+            if (found >= 0) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("{} : {}", wthCols.getDateString(found), rainIndex.getRainSum(Math.max(windows[i].start, found + 1 - days), found + 1));
                 }
+                pdates[i] = wthCols.getDateString(found);
+            } else {
+                String lastDay = wthCols.getDateString(Math.max(windows[i].end - 1, 0));
+                LOG.error("Could not find an appropriate day to plant, using {}", lastDay);
+                pdates[i] = lastDay;
             }
+        }
+    }
 
-            // If start year is out of weather data range
-            if (startYearIndex == dailyData.size()) {
-                // If one year duration, then use the first year
-                if (expDur == 1) {
-                    startYearIndex = 0;
-                } // If multiple year duration, then report error and end function
-                else {
-                    LOG.error("THE START YEAR IS OUT OF DATA RANGE (SC_YEAR:[" + startYear + "]");
-                        return new HashMap<String, ArrayList<String>>();
-                    }
+    /**
+     * Search the planting date in the windows by splitting them into
+     * contiguous blocks which are searched in parallel. Each block writes its
+     * own slots of the result array, so the order is the same as the
+     * sequential search.
+     */
+    private static void searchWindowsParallel(final RainfallIndex rainIndex, final Window[] windows, final int days, final double rain, final String[] pdates) {
+        int blocks = Math.min(windows.length, Runtime.getRuntime().availableProcessors());
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            final int from = (int) ((long) windows.length * i / blocks);
+            final int to = (int) ((long) windows.length * (i + 1) / blocks);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    searchWindows(rainIndex, windows, from, to, days, rain, pdates);
+                    return null;
                 }
-            }
+            });
+        }
+        ParallelTasks.invokeAll(tasks);
+    }
 
-            // Check input dates
-            if (!isValidDate(eDate, eDateCal, "-")) {
-                LOG.error("INVALID EARLIST DATE:[" + eDate + "]");
-                return new HashMap<String, ArrayList<String>>();
-            }
-            if (!isValidDate(lDate, lDateCal, "-")) {
-                LOG.error("INVALID LATEST DATE:[" + lDate + "]");
-                return new HashMap<String, ArrayList<String>>();
-            }
-            if (eDateCal.after(lDateCal)) {
-                lDateCal.set(Calendar.YEAR, lDateCal.get(Calendar.YEAR) + 1);
-            }
-            duration = (int) ((lDateCal.getTimeInMillis() - eDateCal.getTimeInMillis()) / 86400000);
-
-            // Check Number of days of accumulation
-            try {
-                intDays = Integer.parseInt(days);
-            } catch (Exception e) {
-                LOG.error("INVALID NUMBER FOR NUMBER OF DAYS OF ACCUMULATION");
-                return new HashMap<String, ArrayList<String>>();
-            }
-            if (intDays <= 0) {
-                LOG.error("NON-POSITIVE NUMBER FOR NUMBER OF DAYS OF ACCUMULATION");
-                return new HashMap<String, ArrayList<String>>();
-            }
+    /**
+     * Build the index of the management events in the experiment data holder,
+     * which could be shared by the functions handling the events of the same
+     * experiment
+     *
+     * @param data The HashMap of experiment
+     *
+     * @return The event index
+     */
+    public static EventIndex getEventIndex(Map data) {
+        Map mgnData = getObjectOr(data, "management", new HashMap());
+        ArrayList<Map> eventData = getObjectOr(mgnData, "events", new ArrayList());
+        return new EventIndex(eventData);
+    }
 
-            // Check Threshold rainfall amount
-            try {
-                accRainAmtTotal = Double.parseDouble(rain);
-            } catch (Exception e) {
-                LOG.error("INVALID NUMBER FOR THRESHOLD RAINFALL AMOUNT");
-                return new HashMap<String, ArrayList<String>>();
-            }
-            if (accRainAmtTotal <= 0) {
-                LOG.error("NON-POSITIVE NUMBER FOR THRESHOLD RAINFALL AMOUNT");
-                return new HashMap<String, ArrayList<String>>();
-            }
+    /**
+     * Build the rainfall index for the daily weather data in the experiment
+     * data holder. In the multiple data json structure, the first weather
+     * station is used.
+     *
+     * @param data The HashMap of experiment (including weather data)
+     *
+     * @return The rainfall index, or {@code null} if the daily weather data
+     * is not available
+     */
+    public static RainfallIndex getRainfallIndex(Map data) {
+        ArrayList<Map> dailyData = getDailyWeather(data);
+        if (dailyData == null) {
+            return null;
+        }
+        return new RainfallIndex(new DailyWeatherColumns(dailyData));
+    }
 
-            // Find the first record which is the ealiest date for the window in each year
-            int end;
-            int start = getDailyRecIndex(dailyData, eDate, startYearIndex, 0);
-            for (int i = 0; i < windows.length; i++) {
-                end = getDailyRecIndex(dailyData, lDate, start, duration);
-                windows[i] = new Window(start, end);
-                if (i + 1 < windows.length) {
-                    start = getDailyRecIndex(dailyData, eDate, end, 365 - duration);
+    /**
+     * Get the daily weather data array from data holder. In the multiple data
+     * json structure, the first weather station is used.
+     *
+     * @param data The HashMap of experiment (including weather data)
+     *
+     * @return The daily weather data array, or {@code null} if it is not
+     * available
+     */
+    protected static ArrayList<Map> getDailyWeather(Map data) {
+        Map wthData;
+        ArrayList<Map> dailyData;
+
+        // Weather data check and try to get daily data
+        if (data.isEmpty()) {
+            LOG.error("NO ANY DATA.");
+            return null;
+        } else {
+            // Case for multiple data json structure
+            if (data.containsKey("weathers")) {
+                ArrayList<Map> wths = getObjectOr(data, "weathers", new ArrayList());
+                if (wths.isEmpty()) {
+                    LOG.error("NO WEATHER DATA.");
+                    return null;
+                } else {
+                    wthData = wths.get(0);
+                    if (wthData.isEmpty()) {
+                        LOG.error("NO WEATHER DATA.");
+                        return null;
+                    } else {
+                        dailyData = getObjectOr(wthData, "dailyWeather", new ArrayList());
+                    }
                 }
+            } else {
+                HashMap<String, Object> weather = (HashMap<String, Object>) getObjectOr(data, "weather", new HashMap<String, Object>());
+                if (weather.isEmpty()) {
+                    LOG.error("NO WEATHER DATA.");
+                    return null;
+                }
+                dailyData = (ArrayList<Map>) getObjectOr(weather, "dailyWeather", new ArrayList());
             }
 
-            if (windows[0].start == dailyData.size()) {
-                LOG.error("NO VALID DAILY DATA FOR SEARCH WINDOW");
-                return new HashMap<String, ArrayList<String>>();
+            if (dailyData.isEmpty()) {
+                LOG.error("EMPTY DAILY WEATHER DATA.");
+                return null;
             }
+        }
+        return dailyData;
+    }
 
-            // Loop each window to try to find appropriate planting date
-            for (int i = 0; i < windows.length; i++) {
+    /**
+     * Store the parameter-independent part of the auto planting date
+     * calculation, which is shared by the calls with different parameters
+     */
+    private static class PlantingSetup {
 
-            // Check first n days
-                int last = Math.min(windows[i].start + intDays, windows[i].end);
-                accRainAmt = 0;
-                for (int j = windows[i].start; j < last; j++) {
+        public final RainfallIndex rainIndex;
+        public final int expDur;
+        public final int startYear;
+        public final int startYearIndex;
 
-                    try {
-                        accRainAmt += Double.parseDouble(getValueOr(dailyData.get(j), "rain", "0"));
-                    } catch (Exception e) {
-                        continue;
-                    }
-                    if (accRainAmt >= accRainAmtTotal) {
-                        LOG.debug("1: "+getValueOr(dailyData.get(j), "w_date", "") + " : " + accRainAmt + ", " + (accRainAmt >= accRainAmtTotal));
-                    //event.updateEvent("date", getValueOr(dailyData.get(j), "w_date", ""));
-                        //AcePathfinderUtil.insertValue((HashMap)data, "pdate", getValueOr(dailyData.get(j), "w_date", ""));
-                        pdates.add(getValueOr(dailyData.get(j), "w_date", ""));
-                        break;
-                    }
-                }
+        public PlantingSetup(RainfallIndex rainIndex, int expDur, int startYear, int startYearIndex) {
+            this.rainIndex = rainIndex;
+            this.expDur = expDur;
+            this.startYear = startYear;
+            this.startYearIndex = startYearIndex;
+        }
 
-                if (accRainAmt >= accRainAmtTotal) {
-                    continue;
-                }
+        /**
+         * Locate the start year in the weather data
+         *
+         * @param rainIndex The rainfall index of the weather data
+         * @return The setup for the weather data, or {@code null} if the
+         * start year is out of the weather data range
+         */
+        public PlantingSetup withWeather(RainfallIndex rainIndex) {
+            DailyWeatherColumns wthCols = rainIndex.getWeather();
+            DailyDateIndex dateIndex = wthCols.getDateIndex();
 
-            // If the window size is smaller than n
-                if (last > windows[i].end) {
-                    LOG.info("NO APPROPRIATE DATE WAS FOUND FOR NO." + (i + 1) + " PLANTING EVENT");
-                // TODO remove one planting event
-                    event.removeEvent();
+            // If no starting year is provided, the multiple years will begin on the first available weather year.
+            int startYearIndex;
+            if (startYear == 0) {
+                startYearIndex = 0;
+            } else {
+                // Use the first available record in the start year
+                startYearIndex = dateIndex.ceilingIndex(startYear, 101);
+                if (startYearIndex < wthCols.size() && DailyDateIndex.getYear(wthCols.getDate(startYearIndex)) != startYear) {
+                    startYearIndex = wthCols.size();
                 }
 
-            // Check following days
-                int outIndex = last;
-                for (int j = last; j < windows[i].end; j++) {
-
-                    try {
-                        accRainAmt -= Double.parseDouble(getValueOr(dailyData.get(j - intDays), "rain", "0"));
-                        accRainAmt += Double.parseDouble(getValueOr(dailyData.get(j), "rain", "0"));
-                    } catch (Exception e) {
-                        continue;
+                // If start year is out of weather data range
+                if (startYearIndex == wthCols.size()) {
+                    // If one year duration, then use the first year
+                    if (expDur == 1) {
+                        startYearIndex = 0;
+                    } // If multiple year duration, then report error and end function
+                    else {
+                        LOG.error("THE START YEAR IS OUT OF DATA RANGE (SC_YEAR:[" + startYear + "]");
+                        return null;
                     }
-                    if (accRainAmt >= accRainAmtTotal) {
-                        LOG.debug("2:"+getValueOr(dailyData.get(j), "w_date", "") + " : " + accRainAmt + ", " + (accRainAmt >= accRainAmtTotal));
-                    //event.updateEvent("date", getValueOr(dailyData.get(j), "w_date", ""));
-                        //AcePathfinderUtil.insertValue((HashMap)data, "pdate", getValueOr(dailyData.get(j), "w_date", ""));
-                        pdates.add(getValueOr(dailyData.get(j), "w_date", ""));
-                        break;
-                    }
-                    outIndex++;
-                }
-
-                if (accRainAmt < accRainAmtTotal) {
-                    String lastDay = getValueOr(dailyData.get(windows[i].end-1), "w_date", "");
-                    LOG.error("Could not find an appropriate day to plant, using {}", lastDay);
-                    pdates.add(lastDay);
                 }
             }
-            results.put("pdate", pdates);
-            return results;
+
+            return new PlantingSetup(rainIndex, expDur, startYear, startYearIndex);
         }
+    }
 
     /**
      * Store a start index and end index of daily data array for a window
@@ -314,98 +618,30 @@ public class ExperimentHelper {
     }
 
     /**
-     * To check if the input date string is valid and match with the required
-     * format
+     * Parse the month and day from input date string with format mm-dd or
+     * mmdd, the separator should be same with the second parameter
      *
-     * @param date The input date string, which should comes with the format of
-     * yyyy-mm-dd, the separator should be same with the third parameter
-     * @param out The Calendar instance which will be assigned with input year,
-     * month and day
+     * @param date The input date string
      * @param separator The separator string used in date format
-     * @return check result
+     * @return The month and day in the form of MMDD, or {@link #INVALID_INT}
+     * if the date is not valid
      */
-    private static boolean isValidDate(String date, Calendar out, String separator) {
-        try {
-            String[] dates = date.split(separator);
-            out.set(Calendar.DATE, Integer.parseInt(dates[dates.length - 1]));
-            out.set(Calendar.MONTH, Integer.parseInt(dates[dates.length - 2]));
-            if (dates.length > 2) {
-                out.set(Calendar.YEAR, Integer.parseInt(dates[dates.length - 3]));
-            }
-        } catch (Exception e) {
-            try {
-                out.set(Calendar.DATE, Integer.parseInt(date.substring(date.length() - 2, date.length())));
-                out.set(Calendar.MONTH, Integer.parseInt(date.substring(date.length() - 4, date.length() - 2)) - 1);
-                if (date.length() > 4) {
-                    out.set(Calendar.YEAR, Integer.parseInt(date.substring(date.length() - 8, date.length() - 4)) - 1);
-                }
-            } catch (Exception e2) {
-                return false;
-            }
+    private static int parseMonthDay(String date, String separator) {
+        if (date == null) {
+            return INVALID_INT;
         }
-
-        return true;
-    }
-
-    /**
-     * To check if two input date string is same date with no matter about 2nd
-     * input's separator
-     *
-     * @param date1 1st input date string with format yyyymmdd
-     * @param date2 2nd input date string with format mmdd or mm-dd
-     * @param separator The separator used in 2nd string
-     * @return comparison result
-     */
-    private static boolean isSameDate(String date1, String date2, String separator) {
-
-        date2 = date2.replace(separator, "");
-        if (date2.equals("0229")) {
-            try {
-                int year1 = Integer.parseInt(date2.substring(2, 4));
-                if (year1 % 4 != 0) {
-                    return date1.endsWith("0228");
-                }
-            } catch (Exception e) {
-                return false;
-            }
-        }
-
-        return date1.endsWith(date2);
-    }
-
-    /**
-     * Find the index of daily data array for the particular date
-     *
-     * @param dailyData The array of daily data
-     * @param findDate The expected date
-     * @param start The start index for searching
-     * @param expectedDiff The default difference between start index and
-     * expected index (will try this index first, if failed then start loop)
-     * @return The index for the expected date, if no matching data, will return
-     * the size of array
-     */
-    private static int getDailyRecIndex(ArrayList<Map> dailyData, String findDate, int start, int expectedDiff) {
-        String date;
-        if (start + expectedDiff < dailyData.size()) {
-            date = getValueOr(dailyData.get(start + expectedDiff), "w_date", "");
-            if (isSameDate(date, findDate, "-")) {
-                return start + expectedDiff;
-            } else {
-                expectedDiff++;
-                date = getValueOr(dailyData.get(start + expectedDiff), "w_date", "");
-                if (isSameDate(date, findDate, "-")) {
-                    return start + expectedDiff;
-                }
-            }
+        int monthDay = toInt(date.replace(separator, ""));
+        if (monthDay == INVALID_INT || monthDay < 0) {
+            return INVALID_INT;
         }
-
-        for (int j = start; j < dailyData.size(); j++) {
-            date = getValueOr(dailyData.get(j), "w_date", "");
-            if (isSameDate(date, findDate, "-")) {
-                return j;
-            }
+        // Ignore the year part if available
+        monthDay %= 10000;
+        int month = monthDay / 100;
+        int day = monthDay % 100;
+        if (month < 1 || month > 12 || day < 1 || day > AgmipDateCodec.lengthOfMonth(2000, month)) {
+            return INVALID_INT;
         }
-        return dailyData.size();
+        return monthDay;
     }
 
     /**
@@ -426,18 +662,64 @@ public class ExperimentHelper {
      * @param data The experiment data holder
      */
     public static void getFertDistribution(String num, String fecd, String feacd, String fedep, String[] offsets, String[] ptps, HashMap data) {
+        getFertDistribution(num, fecd, feacd, fedep, offsets, ptps, data, getEventIndex(data));
+    }
+
+    /**
+     * Add "N" fertilizer events for each planting event, see
+     * {@link #getFertDistribution(String, String, String, String, String[], String[], HashMap)}.
+     * The index of the management events is given, so that it could be
+     * shared with other calls on the same experiment.
+     *
+     * @param num Number of fertilizer applications
+     * @param fecd The code for type of fertilizer added
+     * @param feacd The code for fertilizer application method
+     * @param fedep The depth at which fertilizer is applied (cm)
+     * @param offsets The array of date as offset from planting date (days)
+     * (must be paired with ptps)
+     * @param ptps The array of proportion of total N added (%) (must be paired
+     * with offsets)
+     * @param data The experiment data holder
+     * @param eventIndex The index of the management events, see
+     * {@link #getEventIndex(Map)}
+     */
+    public static void getFertDistribution(String num, String fecd, String feacd, String fedep, String[] offsets, String[] ptps, HashMap data, EventIndex eventIndex) {
+        getFertDistribution(num, fecd, feacd, fedep, offsets, ptps, toDouble(getValueOr(data, "fen_tot", "")), eventIndex);
+    }
+
+    /**
+     * Add "N" fertilizer events for each planting event, see
+     * {@link #getFertDistribution(String, String, String, String, String[], String[], HashMap)}.
+     * The parsed events and {@code fen_tot} are taken from the experiment
+     * context.
+     *
+     * @param num Number of fertilizer applications
+     * @param fecd The code for type of fertilizer added
+     * @param feacd The code for fertilizer application method
+     * @param fedep The depth at which fertilizer is applied (cm)
+     * @param offsets The array of date as offset from planting date (days)
+     * (must be paired with ptps)
+     * @param ptps The array of proportion of total N added (%) (must be paired
+     * with offsets)
+     * @param context The context of the experiment
+     */
+    public static void getFertDistribution(String num, String fecd, String feacd, String fedep, String[] offsets, String[] ptps, ExperimentContext context) {
+        getFertDistribution(num, fecd, feacd, fedep, offsets, ptps, context.getDouble("fen_tot"), context.getEventIndex());
+    }
+
+    /**
+     * Add "N" fertilizer events for each planting event with the parsed
+     * {@code fen_tot}
+     */
+    private static void getFertDistribution(String num, String fecd, String feacd, String fedep, String[] offsets, String[] ptps, double fen_tot, EventIndex eventIndex) {
         int iNum;
         //Map expData;
-        ArrayList<Map> eventData;
-        double fen_tot;
-        String[] fdates;
         double[] dPtps;
         //Event events;
         String pdate;
 
-        try {
-            iNum = Integer.parseInt(num);
-        } catch (Exception e) {
+        iNum = toInt(num);
+        if (iNum == INVALID_INT) {
             LOG.error("INPUT NUMBER OF FERTILIZER APPLICATIONS IS NOT A NUMBERIC STRING [" + num + "]");
             return;
         }
@@ -459,14 +741,10 @@ public class ExperimentHelper {
         //        LOG.error("NO EXPERIMENT DATA.");
         //       return;
         //    } else {
-        Map mgnData = getObjectOr(data, "management", new HashMap());
-        eventData = getObjectOr(mgnData, "events", new ArrayList());
         //    }
 
             // Check FEN_TOT is avalaible
-        try {
-                fen_tot = Double.parseDouble(getValueOr(data, "fen_tot", "")); // TODO will be replace by generic getting method
-            } catch (Exception e) {
+            if (Double.isNaN(fen_tot)) {
                 LOG.error("FEN_TOT IS INVALID");
                 return;
             }
@@ -483,43 +761,45 @@ public class ExperimentHelper {
             //     LOG.error("PLANTING EVENT IS MISSING");
             //     return;
             // }
-            //HashMap<String, Object> dest = new HashMap<String, Object>();
-            ArrayList<String> output = new ArrayList<String>();
-            for(Map events : eventData) {
-                if (getValueOr(events, "event", "").equals("planting")) {
-                    pdate = getValueOr(events, "date", "");
-        //}
+            // Check input days and ptps
+            int[] iOffsets = new int[iNum];
+            dPtps = new double[iNum];
+            for (int i = 0; i < iNum; i++) {
+                iOffsets[i] = toInt(offsets[i]);
+                if (iOffsets[i] == INVALID_INT) {
+                    LOG.error("INVALID OFFSET NUMBER OF DAYS [" + offsets[i] + "]");
+                    return;
+                }
+                dPtps[i] = toDouble(ptps[i]);
+                if (Double.isNaN(dPtps[i])) {
+                    LOG.error("PAIR DATA IS IN VALID [" + ptps[i] + "]");
+                    return;
+                }
+            }
 
-        // Check input days and ptps
-                    try {
-                        fdates = new String[iNum];
-                        dPtps = new double[iNum];
-                        for (int i = 0; i < iNum; i++) {
-                            fdates[i] = dateOffset(pdate, offsets[i]);
-                            if (fdates[i] == null) {
-                                LOG.error("INVALID OFFSET NUMBER OF DAYS [" + offsets[i] + "]");
-                                return;
-                            }
-                            dPtps[i] = Double.parseDouble(ptps[i]);
-                        }
-                    } catch (Exception e) {
-                        LOG.error("PAIR DATA IS IN VALID [" + e.getMessage() + "]");
-                        return;
-                    }
+            String[] values = new String[FERT_EVENT_KEYS.length];
+            values[1] = fecd;
+            values[2] = feacd;
+            values[3] = fedep;
+            StringBuilder sb = new StringBuilder();
+            ArrayList<String[]> output = new ArrayList<String[]>();
+            for(Map events : eventIndex.getEvents("planting")) {
+                pdate = getValueOr(events, "date", "");
+                int iPdate = toEpochDay(pdate);
+                if (iPdate == INVALID_DATE) {
+                    LOG.error("INVALID PLANTING DATE [" + pdate + "]");
+                    return;
+                }
 
-                    //events.setEventType("fertilizer");
-                    for (int i = 0; i < iNum; i++) {
-                        output.add(String.format("%s|%.0f", fdates[i], (fen_tot * dPtps[i] / 100)));
-                    }
+                for (int i = 0; i < iNum; i++) {
+                    sb.setLength(0);
+                    values[0] = appendAgmipDate(offsetDays(iPdate, iOffsets[i]), sb).toString();
+                    values[4] = DecimalFormatter.format(fen_tot * dPtps[i] / 100, 0);
+                    output.add(values.clone());
                 }
             }
-            for (String addNew : output) {
-                String[] tmp = addNew.split("[|]");
-                AcePathfinderUtil.insertValue(data, "fedate", tmp[0]);
-                AcePathfinderUtil.insertValue(data, "fecd", fecd);
-                AcePathfinderUtil.insertValue(data, "feacd", feacd);
-                AcePathfinderUtil.insertValue(data, "fedep", fedep);
-                AcePathfinderUtil.insertValue(data, "feamn", tmp[1]);
+            for (String[] addNew : output) {
+                eventIndex.append("fertilizer", FERT_EVENT_KEYS, addNew);
             }
         }
 
@@ -538,9 +818,47 @@ public class ExperimentHelper {
      * @param data The experiment data holder
      */
     public static void getOMDistribution(String offset, String omcd, String omc2n, String omdep, String ominp, String dmr, HashMap expData) {
+        getOMDistribution(offset, omcd, omc2n, omdep, ominp, dmr, expData, getEventIndex(expData));
+    }
+
+    /**
+     * Update the organic matter application event with missing data, see
+     * {@link #getOMDistribution(String, String, String, String, String, String, HashMap)}.
+     * The parsed events are taken from the experiment context.
+     *
+     * @param offset application date as days before (-) or after (+) planting
+     * date (days)
+     * @param omcd code for type of fertilizer added
+     * @param omc2n C:N ratio for applied organic matter
+     * @param omdep depth at which organic matter is incorporated (cm)
+     * @param ominp percentage incorporation of organic matter (%)
+     * @param dmr
+     * @param context The context of the experiment
+     */
+    public static void getOMDistribution(String offset, String omcd, String omc2n, String omdep, String ominp, String dmr, ExperimentContext context) {
+        getOMDistribution(offset, omcd, omc2n, omdep, ominp, dmr, context.getData(), context.getEventIndex());
+    }
+
+    /**
+     * Update the organic matter application event with missing data, see
+     * {@link #getOMDistribution(String, String, String, String, String, String, HashMap)}.
+     * The index of the management events is given, so that it could be
+     * shared with other calls on the same experiment.
+     *
+     * @param offset application date as days before (-) or after (+) planting
+     * date (days)
+     * @param omcd code for type of fertilizer added
+     * @param omc2n C:N ratio for applied organic matter
+     * @param omdep depth at which organic matter is incorporated (cm)
+     * @param ominp percentage incorporation of organic matter (%)
+     * @param dmr 
+     * @param data The experiment data holder
+     * @param eventIndex The index of the management events, see
+     * {@link #getEventIndex(Map)}
+     */
+    public static void getOMDistribution(String offset, String omcd, String omc2n, String omdep, String ominp, String dmr, HashMap expData, EventIndex eventIndex) {
 
         String omamt;
-        ArrayList<Map> eventData;
         Event events;
         String pdate;
         String odate;
@@ -556,13 +874,10 @@ public class ExperimentHelper {
         //         LOG.error("NO EXPERIMENT DATA.");
         //         return;
         //     } else {
-        Map mgnData = getObjectOr(expData, "management", new HashMap());
-        eventData = getObjectOr(mgnData, "events", new ArrayList());
-
         //    }
             // Get the omamt from the first? OM event
-        Event omEvent = new Event(eventData, "organic_matter");
-        omamt = (String) omEvent.getCurrentEvent().get("omamt");
+        Map omEvent = eventIndex.getFirstEvent("organic_matter");
+        omamt = omEvent == null ? null : (String) omEvent.get("omamt");
         if (omamt == null || omamt.equals("")) {
             LOG.error("OMAMT IS NOT AVAILABLE");
             return;
@@ -572,7 +887,7 @@ public class ExperimentHelper {
         //}
 
         // Get planting date and om_date
-        events = new Event(eventData, "planting");
+        events = new Event(eventIndex, "planting");
         pdate = (String) events.getCurrentEvent().get("date");
         if (pdate == null || pdate.equals("")) {
             LOG.error("PLANTING DATE IS NOT AVAILABLE");
@@ -621,85 +936,127 @@ public class ExperimentHelper {
      * @param data The experiment data holder
      */
     public static void getStableCDistribution(String som3_0, String pp, String rd, HashMap data) {
+        SoilProfile profile = getSoilProfile(data);
+        if (profile != null) {
+            getStableCDistribution(som3_0, pp, rd, profile);
+            profile.commit();
+        }
+    }
+
+    /**
+     * Calculate Stable C (g[C]/100g[soil]) fraction distribution in soil layers
+     * and save the result into the layers, see
+     * {@link #getStableCDistribution(String, String, String, HashMap)}. The
+     * soil profile is taken from the experiment context.
+     *
+     * @param som3_0 fraction of total soil organic C which is stable, at
+     * surface (fraction)
+     * @param pp depth of topsoil where maximum SOM3 fraction is relatively
+     * constant (cm)
+     * @param rd depth at which soil C is relatively stable (~98% stable C) (cm)
+     * @param context The context of the experiment
+     */
+    public static void getStableCDistribution(String som3_0, String pp, String rd, ExperimentContext context) {
+        SoilProfile profile = context.getSoilProfile();
+        if (profile != null) {
+            getStableCDistribution(som3_0, pp, rd, profile);
+            profile.commit();
+        }
+    }
+
+    /**
+     * Calculate Stable C (g[C]/100g[soil]) fraction distribution in soil
+     * layers of every soil site in the data holder, see
+     * {@link #getStableCDistribution(String, String, String, HashMap)}. The
+     * soil sites are calculated in parallel.
+     *
+     * @param som3_0 fraction of total soil organic C which is stable, at
+     * surface (fraction)
+     * @param pp depth of topsoil where maximum SOM3 fraction is relatively
+     * constant (cm)
+     * @param rd depth at which soil C is relatively stable (~98% stable C) (cm)
+     * @param data The data holder, see {@link SoilHelper#getSoilProfiles(Map)}
+     */
+    public static void getStableCDistributionForSoils(final String som3_0, final String pp, final String rd, HashMap data) {
+        ArrayList<SoilProfile> profiles = getSoilProfiles(data);
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(profiles.size());
+        for (final SoilProfile profile : profiles) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    getStableCDistribution(som3_0, pp, rd, profile);
+                    profile.commit();
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(tasks);
+    }
+
+    /**
+     * Calculate Stable C fraction distribution in soil layers, see
+     * {@link #getStableCDistribution(String, String, String, HashMap)}. The
+     * result is kept in the profile until it is committed, and is cached for
+     * the same layer data and parameters when the cache is enabled, see
+     * {@link SoilHelper#setCurveCacheSize(int)}.
+     *
+     * @param som3_0 fraction of total soil organic C which is stable, at
+     * surface (fraction)
+     * @param pp depth of topsoil where maximum SOM3 fraction is relatively
+     * constant (cm)
+     * @param rd depth at which soil C is relatively stable (~98% stable C) (cm)
+     * @param profile The soil profile, see
+     * {@link SoilHelper#getSoilProfile(Map)}
+     */
+    public static void getStableCDistribution(String som3_0, String pp, String rd, SoilProfile profile) {
 
-        ArrayList<Map> icLayers;
-        ArrayList<HashMap<String, Object>> soilLayers;
         double dSom3_0;
         double dPp;
         double dRd;
-        double dK;
-        double dSom2_0;
-        double dF;
-        double dSom3_fac;
         double[] dSllbs;
         double[] dSlocs;
-        double mid;
 
         LOG.debug("Checkpoint 1");
-        try {
-            dSom3_0 = Double.parseDouble(som3_0);
-            dPp = Double.parseDouble(pp);
-            dRd = Double.parseDouble(rd);
-            dK = Math.log(0.02) / (dRd - dPp);
-            dSom2_0 = 0.95 * (1 - dSom3_0);
-        } catch (Exception e) {
+        dSom3_0 = toDouble(som3_0);
+        dPp = toDouble(pp);
+        dRd = toDouble(rd);
+        if (Double.isNaN(dSom3_0) || Double.isNaN(dPp) || Double.isNaN(dRd)) {
             LOG.error("INVALID INPUT FOR NUMBERIC VALUE");
             return;
         }
 
-        soilLayers = getSoilLayer(data);
-        if (soilLayers == null) {
-            return;
-        } else if (soilLayers.isEmpty()) {
+        if (profile.size() == 0) {
             LOG.error("SOIL LAYER DATA IS EMPTY");
             return;
         } else {
-            try {
-                dSllbs = new double[soilLayers.size()];
-                dSlocs = new double[soilLayers.size()];
-                for (int i = 0; i < soilLayers.size(); i++) {
-                    dSllbs[i] = Double.parseDouble(getObjectOr(soilLayers.get(i), "sllb", "").toString());
-                    dSlocs[i] = Double.parseDouble(getObjectOr(soilLayers.get(i), "sloc", "").toString());
-                }
-            } catch (NumberFormatException e) {
-                LOG.error("INVALID NUMBER FOR SLOC OR SLLB IN DATA [" + e.getMessage() + "]");
+            dSllbs = profile.getColumn("sllb");
+            dSlocs = profile.getColumn("sloc");
+            int invalid = profile.findInvalid("sllb", "sloc");
+            if (invalid >= 0) {
+                String var = Double.isNaN(dSllbs[invalid]) ? "sllb" : "sloc";
+                LOG.error("INVALID NUMBER FOR SLOC OR SLLB IN DATA [" + getNumberError(profile.getString(var, invalid)) + "]");
                 return;
             }
         }
 
-        LOG.debug("Checkpoint 2");
-        // Check if initial condition layer data is available
-        // ArrayList<Map> exps = getObjectOr(data, "experiments", new ArrayList());
-        // if (exps.isEmpty()) {
-        //     LOG.error("NO EXPERIMENT DATA.");
-        //     return;
-        // } else {
-        //     Map expData = exps.get(0);
-        //     if (expData.isEmpty()) {
-        //         LOG.error("NO EXPERIMENT DATA.");
-        //         return;
-        //     } else {
-        // Map icData = getObjectOr(data, "soil", new HashMap());
-        // icLayers = getObjectOr(icData, "soilLayer", new ArrayList());
-        // if (icLayers.isEmpty()) {
-        //     LOG.error("NO SOIL DATA.");
-        //     return;
-        // } else if (icLayers.size() != soilLayers.size()) {
-        //     LOG.error("THE LAYER DATA IN THE INITIAL CONDITION SECTION IS NOT MATCHED WITH SOIL SECTION");
-        //     return;
-        // }
-        //     //}
-        // //}
-
         LOG.debug("Checkpoint 3");
-        double last = 0;
-        for (int i = 0; i < soilLayers.size(); i++) {
-            mid = (dSllbs[i] + last) / 2;
-            last = dSllbs[i];
-            dF = getGrowthFactor(mid, dPp, dK, dSom2_0);
-            dSom3_fac = 1 - Math.max(0.02, dF) / 0.95;
-            soilLayers.get(i).put("slsc", String.format("%.2f", dSlocs[i] * dSom3_fac));
-//            LOG.debug((String)icLayers.get(i).get("icbl") + ", " + (String)icLayers.get(i).get("slsc"));
+        SoilCurveCache cache = getCurveCache();
+        SoilCurveCache.Key key = null;
+        String[] slsc = null;
+        if (cache.getMaxSize() > 0) {
+            key = new SoilCurveCache.Key("slsc", new double[]{dSom3_0, dPp, dRd}, dSllbs, dSlocs);
+            slsc = cache.get(key);
+        }
+        if (slsc == null) {
+            double[] slscs = new double[dSllbs.length];
+            SoilCurveKernel.getStableC(dSllbs, dSlocs, new int[]{0, dSllbs.length}, dSom3_0, dPp, dRd, slscs);
+            slsc = new String[dSllbs.length];
+            for (int i = 0; i < dSllbs.length; i++) {
+                slsc[i] = DecimalFormatter.format(slscs[i], 2);
+            }
+            if (key != null) {
+                cache.put(key, slsc);
+            }
         }
+        profile.setColumn("slsc", slsc);
     }
 }
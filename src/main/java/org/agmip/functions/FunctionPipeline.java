@@ -0,0 +1,260 @@
+package org.agmip.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.agmip.common.Event;
+import org.agmip.common.EventIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An ordered list of the helper functions with their parameters, which are
+ * applied to an experiment in one run.
+ *
+ * The parsed forms of the experiment which are used by the steps (the event
+ * index, the rainfall index and the soil profile) are taken from the
+ * {@link ExperimentContext} once before the first step, and are passed to all
+ * the steps. The soil layer results are kept in the soil profile and written
+ * into the layer records in one pass after the last step. The events are
+ * updated through the shared event index, so that the following steps see
+ * them in the same way as the separate calls. The result is the same as
+ * calling the helper functions one after another in the order of the steps,
+ * except that {@code AUTO_PDATE} also writes the planting dates it found (one
+ * for each year of a multi-year run) as the new {@code planting} events, so
+ * that the following {@code FERT_DIST} and {@code OM_DIST} steps are applied
+ * from them. The new planting events keep the other values of the first
+ * planting event which was replaced.
+ *
+ * The supported functions and their parameters are
+ * <ul>
+ * <li>{@code AUTO_PDATE}: eDate, lDate, rain, days, see
+ * {@link ExperimentHelper#getAutoPlantingDate(String, String, String, String, Map, RainfallIndex, EventIndex)}</li>
+ * <li>{@code FERT_DIST}: num, fecd, feacd, fedep, followed by the pairs of
+ * offset and ptp, see
+ * {@link ExperimentHelper#getFertDistribution(String, String, String, String, String[], String[], HashMap, EventIndex)}</li>
+ * <li>{@code OM_DIST}: offset, omcd, omc2n, omdep, ominp, dmr, see
+ * {@link ExperimentHelper#getOMDistribution(String, String, String, String, String, String, HashMap, EventIndex)}</li>
+ * <li>{@code ROOT_DIST}: m, pp, rd, see
+ * {@link SoilHelper#getRootDistribution(String, String, String, SoilProfile)}</li>
+ * <li>{@code STABLEC}: som3_0, pp, rd, see
+ * {@link ExperimentHelper#getStableCDistribution(String, String, String, SoilProfile)}</li>
+ * </ul>
+ *
+ * The pipeline could be run on many experiments, but not concurrently with
+ * adding steps.
+ */
+public class FunctionPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FunctionPipeline.class);
+    private final ArrayList<Step> steps = new ArrayList<Step>();
+
+    /**
+     * Add a function step at the end of the pipeline
+     *
+     * @param function The function name, e.g. {@code "FERT_DIST"}
+     * @param params The parameters of the function
+     * @return This pipeline
+     * @throws IllegalArgumentException if the function is not supported or
+     * the number of parameters does not match it
+     */
+    public FunctionPipeline addStep(String function, String... params) {
+        Function f;
+        try {
+            f = Function.valueOf(function);
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Unsupported function: " + function);
+        }
+        if (f == Function.FERT_DIST
+                ? params.length < f.paramCount || (params.length - f.paramCount) % 2 != 0
+                : params.length != f.paramCount) {
+            throw new IllegalArgumentException("Invalid number of parameters for " + function + ": " + params.length);
+        }
+        steps.add(new Step(f, params.clone()));
+        return this;
+    }
+
+    /**
+     * Get the number of steps
+     *
+     * @return The number of steps
+     */
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Apply all the steps to the experiment data holder
+     *
+     * @param data The experiment data holder
+     * @return The planting dates of each {@code AUTO_PDATE} step, in the
+     * order of the steps
+     */
+    public ArrayList<HashMap<String, ArrayList<String>>> run(HashMap data) {
+        return run(new ExperimentContext(data));
+    }
+
+    /**
+     * Apply all the steps to the experiment, the parsed forms which are
+     * already in the context are reused
+     *
+     * @param context The context of the experiment
+     * @return The planting dates of each {@code AUTO_PDATE} step, in the
+     * order of the steps
+     */
+    public ArrayList<HashMap<String, ArrayList<String>>> run(ExperimentContext context) {
+        ArrayList<HashMap<String, ArrayList<String>>> results = new ArrayList<HashMap<String, ArrayList<String>>>();
+
+        // Read the parsed forms needed by the steps
+        boolean useEvents = false;
+        boolean useWeather = false;
+        boolean useSoil = false;
+        for (Step step : steps) {
+            useEvents |= step.function.useEvents;
+            useWeather |= step.function.useWeather;
+            useSoil |= step.function.useSoil;
+        }
+        HashMap data = context.getData();
+        EventIndex eventIndex = useEvents ? context.getEventIndex() : null;
+        RainfallIndex rainIndex = useWeather ? context.getRainfallIndex() : null;
+        SoilProfile profile = useSoil ? context.getSoilProfile() : null;
+
+        // Apply the steps
+        for (Step step : steps) {
+            String[] p = step.params;
+            switch (step.function) {
+                case AUTO_PDATE:
+                    if (rainIndex == null) {
+                        results.add(new HashMap<String, ArrayList<String>>());
+                    } else {
+                        Map template = eventIndex.getFirstEvent("planting");
+                        template = template == null ? new HashMap() : new HashMap(template);
+                        HashMap<String, ArrayList<String>> result = ExperimentHelper.getAutoPlantingDate(p[0], p[1], p[2], p[3], data, rainIndex, eventIndex);
+                        addPlantingEvents(eventIndex, template, result.get("pdate"));
+                        results.add(result);
+                    }
+                    break;
+                case FERT_DIST:
+                    int pairs = (p.length - Function.FERT_DIST.paramCount) / 2;
+                    String[] offsets = new String[pairs];
+                    String[] ptps = new String[pairs];
+                    for (int i = 0; i < pairs; i++) {
+                        offsets[i] = p[Function.FERT_DIST.paramCount + 2 * i];
+                        ptps[i] = p[Function.FERT_DIST.paramCount + 2 * i + 1];
+                    }
+                    ExperimentHelper.getFertDistribution(p[0], p[1], p[2], p[3], offsets, ptps, data, eventIndex);
+                    break;
+                case OM_DIST:
+                    ExperimentHelper.getOMDistribution(p[0], p[1], p[2], p[3], p[4], p[5], data, eventIndex);
+                    break;
+                case ROOT_DIST:
+                    if (profile == null) {
+                        LOG.error("SOIL LAYER DATA IS NOT AVAILABLE FOR ROOT_DIST");
+                    } else {
+                        SoilHelper.getRootDistribution(p[0], p[1], p[2], profile);
+                    }
+                    break;
+                case STABLEC:
+                    if (profile == null) {
+                        LOG.error("SOIL LAYER DATA IS NOT AVAILABLE FOR STABLEC");
+                    } else {
+                        ExperimentHelper.getStableCDistribution(p[0], p[1], p[2], profile);
+                    }
+                    break;
+            }
+        }
+
+        // Write the soil layer results
+        if (profile != null) {
+            profile.commit();
+        }
+        return results;
+    }
+
+    /**
+     * Add the planting events for the planting dates found by
+     * {@code AUTO_PDATE}, which replace the removed planting events
+     *
+     * @param eventIndex The event index of the experiment
+     * @param template The values of the replaced planting event
+     * @param pdates The planting dates, or {@code null} if not found
+     */
+    private static void addPlantingEvents(EventIndex eventIndex, Map template, ArrayList<String> pdates) {
+        if (pdates == null || pdates.isEmpty()) {
+            return;
+        }
+        Event.Batch batch = new Event(eventIndex, "planting").newBatch();
+        for (String pdate : pdates) {
+            Map event = batch.addEvent(pdate, false);
+            event.putAll(template);
+            event.put("event", "planting");
+            event.put("date", pdate);
+        }
+        batch.commit();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Step step : steps) {
+            if (sb.length() > 0) {
+                sb.append(" -> ");
+            }
+            sb.append(step.function).append(Arrays.toString(step.params));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the supported function names
+     *
+     * @return The function names
+     */
+    public static List<String> getFunctionNames() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (Function f : Function.values()) {
+            names.add(f.name());
+        }
+        return names;
+    }
+
+    /**
+     * The supported functions, with the number of fixed parameters and the
+     * parsed forms they use
+     */
+    private static enum Function {
+
+        AUTO_PDATE(4, true, true, false),
+        FERT_DIST(4, true, false, false),
+        OM_DIST(6, true, false, false),
+        ROOT_DIST(3, false, false, true),
+        STABLEC(3, false, false, true);
+        private final int paramCount;
+        private final boolean useEvents;
+        private final boolean useWeather;
+        private final boolean useSoil;
+
+        private Function(int paramCount, boolean useEvents, boolean useWeather, boolean useSoil) {
+            this.paramCount = paramCount;
+            this.useEvents = useEvents;
+            this.useWeather = useWeather;
+            this.useSoil = useSoil;
+        }
+    }
+
+    /**
+     * A function with its parameters
+     */
+    private static class Step {
+
+        private final Function function;
+        private final String[] params;
+
+        public Step(Function function, String[] params) {
+            this.function = function;
+            this.params = params;
+        }
+    }
+}
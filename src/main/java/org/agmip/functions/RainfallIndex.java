@@ -0,0 +1,82 @@
+package org.agmip.functions;
+
+/**
+ * Prefix-sum index of the daily rainfall for one weather station, which is
+ * built once and can answer any number of accumulated rainfall queries.
+ *
+ * The rainfall amounts are summed as fixed-point integers (0.001 mm), so the
+ * accumulated amounts are exact and do not depend on the order of the
+ * summation. Missing or invalid rainfall values are counted as 0 mm. The
+ * index is not modified after it is built, so it is thread-safe.
+ */
+public class RainfallIndex {
+
+    private static final double UNITS_PER_MM = 1000;
+    private final DailyWeatherColumns wthCols;
+    private final long[] prefix;
+
+    /**
+     * Constructor
+     *
+     * @param wthCols The daily weather data columns
+     */
+    public RainfallIndex(DailyWeatherColumns wthCols) {
+        this.wthCols = wthCols;
+        double[] rain = wthCols.getRain();
+        prefix = new long[rain.length + 1];
+        for (int i = 0; i < rain.length; i++) {
+            prefix[i + 1] = prefix[i] + (Double.isNaN(rain[i]) ? 0 : toUnits(rain[i]));
+        }
+    }
+
+    /**
+     * Get the daily weather data columns which the index is built on
+     *
+     * @return The daily weather data columns
+     */
+    public DailyWeatherColumns getWeather() {
+        return wthCols;
+    }
+
+    /**
+     * Get the accumulated rainfall amount of the records in the range
+     *
+     * @param from The first record index, inclusive
+     * @param to The last record index, exclusive
+     * @return The accumulated rainfall amount (mm)
+     */
+    public double getRainSum(int from, int to) {
+        return (prefix[to] - prefix[from]) / UNITS_PER_MM;
+    }
+
+    /**
+     * Find the first record in the window whose accumulated rainfall amount
+     * of the previous n days (itself included, but not before the start of
+     * the window) reaches the threshold.
+     *
+     * @param start The first record index of the window, inclusive
+     * @param end The last record index of the window, exclusive
+     * @param days Number of days of accumulation
+     * @param threshold Threshold rainfall amount (mm), rounded to 0.001 mm
+     * @return The index of the found record, or -1 if not found
+     */
+    public int findFirst(int start, int end, int days, double threshold) {
+        long units = toUnits(threshold);
+        for (int j = start; j < end; j++) {
+            if (prefix[j + 1] - prefix[Math.max(start, j + 1 - days)] >= units) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Convert the rainfall amount to the fixed-point units of the index
+     *
+     * @param amount The rainfall amount (mm)
+     * @return The amount rounded to 0.001 mm
+     */
+    static long toUnits(double amount) {
+        return Math.round(amount * UNITS_PER_MM);
+    }
+}
@@ -0,0 +1,186 @@
+package org.agmip.functions;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the formatted soil curve results, so that the soil
+ * profiles with the same layer data and curve parameters only calculate the
+ * curve once.
+ *
+ * The entries are keyed by the content of the layer columns and the
+ * parameters, and the least recently used entry is evicted when the cache is
+ * full. The cached values are shared by all the hits, and must not be
+ * modified.
+ */
+public class SoilCurveCache {
+
+    private final LinkedHashMap<Key, String[]> entries = new LinkedHashMap<Key, String[]>(16, 0.75f, true);
+    private int maxSize;
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize The maximum number of entries, 0 to disable the cache
+     */
+    public SoilCurveCache(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+    }
+
+    /**
+     * Get the cached values for the key
+     *
+     * @param key The key
+     * @return The values, or {@code null} if not cached
+     */
+    public synchronized String[] get(Key key) {
+        if (maxSize == 0) {
+            return null;
+        }
+        String[] values = entries.get(key);
+        if (values == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return values;
+    }
+
+    /**
+     * Put the values into the cache, the least recently used entry will be
+     * evicted if the cache is full
+     *
+     * @param key The key
+     * @param values The values
+     */
+    public synchronized void put(Key key, String[] values) {
+        if (maxSize == 0) {
+            return;
+        }
+        entries.put(key, values);
+        evict();
+    }
+
+    /**
+     * Set the maximum number of entries
+     *
+     * @param maxSize The maximum number of entries, 0 to disable the cache
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        evict();
+    }
+
+    /**
+     * Get the maximum number of entries
+     *
+     * @return The maximum number of entries
+     */
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the number of cached entries
+     *
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the number of lookups which found the cached values
+     *
+     * @return The hit count
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of lookups which did not find the cached values
+     *
+     * @return The miss count
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the fraction of lookups which found the cached values
+     *
+     * @return The hit rate (0-1), 0 if no lookup yet
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Remove all the entries and reset the statistics
+     */
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, String[]>> it = entries.entrySet().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * The key of the cached curve result, compares the whole content of the
+     * parameters and the layer columns
+     */
+    public static final class Key {
+
+        private final String var;
+        private final double[] params;
+        private final double[][] columns;
+        private final int hash;
+
+        /**
+         * Constructor, the arrays are kept by reference and must not be
+         * modified afterwards
+         *
+         * @param var The result variable name
+         * @param params The curve parameters
+         * @param columns The layer columns used by the curve
+         */
+        public Key(String var, double[] params, double[]... columns) {
+            this.var = var;
+            this.params = params;
+            this.columns = columns;
+            this.hash = 31 * (31 * var.hashCode() + Arrays.hashCode(params)) + Arrays.deepHashCode(columns);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && var.equals(other.var)
+                    && Arrays.equals(params, other.params)
+                    && Arrays.deepEquals(columns, other.columns);
+        }
+    }
+}
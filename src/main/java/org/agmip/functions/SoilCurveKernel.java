@@ -0,0 +1,156 @@
+package org.agmip.functions;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import org.agmip.common.ParallelTasks;
+
+/**
+ * Compute the soil curve functions for many soil profiles at once.
+ *
+ * The layer data of all the profiles are given as flattened arrays, and the
+ * layers of profile {@code p} are from {@code offsets[p]} (inclusive) to
+ * {@code offsets[p + 1]} (exclusive). The results are written into the output
+ * array at the same positions. The curve is set up once for the whole batch,
+ * and the profiles are split into contiguous blocks across the available
+ * cores when the batch is large enough.
+ *
+ * Each value is calculated with
+ * {@link SoilHelper#getGrowthFactor(double, double, double, double)}, so the
+ * results are exactly the same as the single profile functions.
+ */
+public final class SoilCurveKernel {
+
+    private static final int MIN_PARALLEL_LAYERS = 20000;
+
+    /**
+     * Cannot instantiate this class.
+     */
+    private SoilCurveKernel() {
+    }
+
+    /**
+     * Get the exponential decay rate of the curve which declines to 2% from
+     * PP to RD
+     *
+     * @param pp depth of top of curve (pivot point) (cm)
+     * @param rd depth at which the curve declines to 2% (cm)
+     * @return The decay rate
+     */
+    public static double getDecayRate(double pp, double rd) {
+        return Math.log(0.02) / (rd - pp);
+    }
+
+    /**
+     * Calculate the root growth factor for each soil layer of the profiles,
+     * see {@link SoilHelper#getRootDistribution(String, String, String, SoilProfile)}
+     *
+     * @param sllb The flattened soil layer depth (cm)
+     * @param offsets The start position of each profile, plus the end of the
+     * last profile
+     * @param m Maximum value in the top PP cm of soil
+     * @param pp depth of top of curve (pivot point) (cm)
+     * @param rd depth at which the curve declines to 2% (cm)
+     * @param out The output growth factors (0-M)
+     */
+    public static void getRootGrowthFactors(final double[] sllb, final int[] offsets, final double m, final double pp, final double rd, final double[] out) {
+        checkLayout(offsets, out.length, sllb);
+        final double k = getDecayRate(pp, rd);
+        run(offsets, new Block() {
+            @Override
+            void compute(int from, int to) {
+                for (int p = from; p < to; p++) {
+                    double last = 0;
+                    for (int i = offsets[p]; i < offsets[p + 1]; i++) {
+                        out[i] = SoilHelper.getGrowthFactor((sllb[i] + last) / 2, pp, k, m);
+                        last = sllb[i];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Calculate the stable organic carbon for each soil layer of the
+     * profiles, see
+     * {@link ExperimentHelper#getStableCDistribution(String, String, String, SoilProfile)}
+     *
+     * @param sllb The flattened soil layer depth (cm)
+     * @param sloc The flattened soil organic carbon (g[C]/100g[soil])
+     * @param offsets The start position of each profile, plus the end of the
+     * last profile
+     * @param som3_0 fraction of total soil organic C which is stable, at
+     * surface (fraction)
+     * @param pp depth of topsoil where maximum SOM3 fraction is relatively
+     * constant (cm)
+     * @param rd depth at which soil C is relatively stable (~98% stable C) (cm)
+     * @param out The output stable organic carbon (g[C]/100g[soil])
+     */
+    public static void getStableC(final double[] sllb, final double[] sloc, final int[] offsets, double som3_0, final double pp, final double rd, final double[] out) {
+        checkLayout(offsets, out.length, sllb, sloc);
+        final double k = getDecayRate(pp, rd);
+        final double som2_0 = 0.95 * (1 - som3_0);
+        run(offsets, new Block() {
+            @Override
+            void compute(int from, int to) {
+                for (int p = from; p < to; p++) {
+                    double last = 0;
+                    for (int i = offsets[p]; i < offsets[p + 1]; i++) {
+                        double f = SoilHelper.getGrowthFactor((sllb[i] + last) / 2, pp, k, som2_0);
+                        out[i] = sloc[i] * (1 - Math.max(0.02, f) / 0.95);
+                        last = sllb[i];
+                    }
+                }
+            }
+        });
+    }
+
+    private static void checkLayout(int[] offsets, int size, double[]... columns) {
+        if (offsets.length == 0 || offsets[0] < 0 || offsets[offsets.length - 1] > size) {
+            throw new IllegalArgumentException("Invalid profile offsets");
+        }
+        for (int p = 1; p < offsets.length; p++) {
+            if (offsets[p] < offsets[p - 1]) {
+                throw new IllegalArgumentException("Invalid profile offsets");
+            }
+        }
+        for (double[] column : columns) {
+            if (column.length < offsets[offsets.length - 1]) {
+                throw new IllegalArgumentException("The layer data is shorter than the profile offsets");
+            }
+        }
+    }
+
+    /**
+     * Run the block over all profiles, split into contiguous blocks across
+     * the cores for the large batch
+     */
+    private static void run(int[] offsets, final Block block) {
+        int profiles = offsets.length - 1;
+        int layers = offsets[profiles] - offsets[0];
+        int blocks = Math.min(profiles, Runtime.getRuntime().availableProcessors());
+        if (blocks <= 1 || layers < MIN_PARALLEL_LAYERS || ParallelTasks.isInTask()) {
+            block.compute(0, profiles);
+            return;
+        }
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(blocks);
+        for (int b = 0; b < blocks; b++) {
+            final int from = (int) ((long) profiles * b / blocks);
+            final int to = (int) ((long) profiles * (b + 1) / blocks);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    block.compute(from, to);
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(tasks);
+    }
+
+    /**
+     * The computation for a range of profiles
+     */
+    private abstract static class Block {
+
+        abstract void compute(int from, int to);
+    }
+}
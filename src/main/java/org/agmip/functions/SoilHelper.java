@@ -2,9 +2,13 @@ package org.agmip.functions;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import org.agmip.common.DecimalFormatter;
+import org.agmip.common.ParallelTasks;
+import static org.agmip.common.Functions.*;
 import static org.agmip.util.MapUtil.*;
-import static org.agmip.ace.util.AcePathfinderUtil.insertValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +20,7 @@ import org.slf4j.LoggerFactory;
 public class SoilHelper {
 
     private static final Logger LOG = LoggerFactory.getLogger(SoilHelper.class);
+    private static final SoilCurveCache CURVE_CACHE = new SoilCurveCache(0);
 
     /**
      * Calculate root growth factor (0-1) for each soil layer
@@ -24,51 +29,104 @@ public class SoilHelper {
      * @param pp depth of top of curve (pivot point) (cm)
      */
     public static void getRootDistribution(String m, String pp, String rd, HashMap data) {
+        SoilProfile profile = getSoilProfile(data);
+        if (profile != null) {
+            getRootDistribution(m, pp, rd, profile);
+            profile.commit();
+        }
+    }
+
+    /**
+     * Calculate root growth factor (0-1) for each soil layer, see
+     * {@link #getRootDistribution(String, String, String, HashMap)}. The
+     * result is kept in the profile until it is committed, and is cached for
+     * the same layer depths and parameters when the cache is enabled, see
+     * {@link #setCurveCacheSize(int)}.
+     *
+     * @param profile The soil profile, see {@link #getSoilProfile(Map)}
+     */
+    public static void getRootDistribution(String m, String pp, String rd, SoilProfile profile) {
 
         double[] dSllbs;
-        double mid;
         double dPp;
         double dRd;
         double dM;
-        double dK;
-//        ArrayList<HashMap<String, Object>> soilLayers = traverseAndGetSiblings(data, "sllb");
-        ArrayList<HashMap<String, Object>> soilLayers = getSoilLayer(data);
-        // ArrayList<HashMap<String, String>> soilLayers = MapUtil.getBucket(data, "soils").getDataList();
 
-        if (soilLayers == null) {
-            return;
-        } else if (soilLayers.isEmpty()) {
+        if (profile.size() == 0) {
             LOG.error("----  SOIL LAYER DATA IS EMPTY");
             return;
         } else {
-            try {
-                dPp = Double.parseDouble(pp);
-                dRd = Double.parseDouble(rd);
-                dM = Double.parseDouble(m);
-                dSllbs = new double[soilLayers.size()];
-                dK = Math.log(0.02) / (dRd - dPp);
-                for (int i = 0; i < soilLayers.size(); i++) {
-                    dSllbs[i] = Double.parseDouble(getObjectOr(soilLayers.get(i), "sllb", "").toString());
-                }
-            } catch (NumberFormatException e) {
-                LOG.error("INVALID INPUT NUMBER [" + e.getMessage() + "]");
+            dPp = toDouble(pp);
+            dRd = toDouble(rd);
+            dM = toDouble(m);
+            if (Double.isNaN(dPp) || Double.isNaN(dRd) || Double.isNaN(dM)) {
+                LOG.error("INVALID INPUT NUMBER [" + getNumberError(Double.isNaN(dPp) ? pp : Double.isNaN(dRd) ? rd : m) + "]");
+                return;
+            }
+            dSllbs = profile.getColumn("sllb");
+            int invalid = profile.findInvalid("sllb");
+            if (invalid >= 0) {
+                LOG.error("INVALID INPUT NUMBER [" + getNumberError(profile.getString("sllb", invalid)) + "]");
                 return;
             }
         }
 
-        // First layer
-        soilLayers.get(0).put("slrgf", getGrowthFactor(dSllbs[0] / 2, dPp, dK, dM, 3));
-//        insertValue(data, "slrgf", getGrowthFactor(dSllbs[0] / 2, dPp, dK, dM, 3));
-
-        // Other layers
-        for (int i = 1; i < dSllbs.length; i++) {
-            mid = (dSllbs[i] + dSllbs[i - 1]) / 2;
-            String slrgf = getGrowthFactor(mid, dPp, dK, dM, 3);
-            soilLayers.get(i).put("slrgf", slrgf);
-//            insertValue(data, "slrgf", slrgf);
-//            LOG.debug("Layer " + (i + 1) + " : sllb= " + dSllbs[i] + ", mid=" + mid + ", factor=" + slrgf);
+        SoilCurveCache.Key key = null;
+        String[] slrgf = null;
+        if (CURVE_CACHE.getMaxSize() > 0) {
+            key = new SoilCurveCache.Key("slrgf", new double[]{dM, dPp, dRd}, dSllbs);
+            slrgf = CURVE_CACHE.get(key);
         }
+        if (slrgf == null) {
+            double[] factors = new double[dSllbs.length];
+            SoilCurveKernel.getRootGrowthFactors(dSllbs, new int[]{0, dSllbs.length}, dM, dPp, dRd, factors);
+            slrgf = new String[dSllbs.length];
+            for (int i = 0; i < dSllbs.length; i++) {
+                slrgf[i] = DecimalFormatter.format(factors[i], 3);
+            }
+            if (key != null) {
+                CURVE_CACHE.put(key, slrgf);
+            }
+        }
+        profile.setColumn("slrgf", slrgf);
+    }
 
+    /**
+     * Calculate root growth factor (0-1) for each soil layer, see
+     * {@link #getRootDistribution(String, String, String, HashMap)}. The soil
+     * profile is taken from the experiment context.
+     *
+     * @param context The context of the experiment
+     */
+    public static void getRootDistribution(String m, String pp, String rd, ExperimentContext context) {
+        SoilProfile profile = context.getSoilProfile();
+        if (profile != null) {
+            getRootDistribution(m, pp, rd, profile);
+            profile.commit();
+        }
+    }
+
+    /**
+     * Calculate root growth factor (0-1) for each soil layer of every soil
+     * site in the data holder, see
+     * {@link #getRootDistribution(String, String, String, HashMap)}. The soil
+     * sites are calculated in parallel.
+     *
+     * @param data The data holder, see {@link #getSoilProfiles(Map)}
+     */
+    public static void getRootDistributionForSoils(final String m, final String pp, final String rd, HashMap data) {
+        ArrayList<SoilProfile> profiles = getSoilProfiles(data);
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(profiles.size());
+        for (final SoilProfile profile : profiles) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    getRootDistribution(m, pp, rd, profile);
+                    profile.commit();
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(tasks);
     }
 
     /**
@@ -117,7 +175,7 @@ public class SoilHelper {
      */
     protected static String getGrowthFactor(double mid, double pp, double k, double m, int prec) {
         prec = prec < 0 ? 0 : prec;
-        return String.format("%." + prec + "f", getGrowthFactor(mid, pp, k, m));
+        return DecimalFormatter.format(getGrowthFactor(mid, pp, k, m), prec);
     }
 
     /**
@@ -131,11 +189,111 @@ public class SoilHelper {
      * @return The growth factor (0-1)
      */
     protected static String getGrowthFactor(double mid, double pp, double k, int prec) {
-        return String.format("%." + prec + "f", getGrowthFactor(mid, pp, k, 1, prec));
+        return getGrowthFactor(mid, pp, k, 1, prec);
+    }
+
+    /**
+     * Get the error message for the invalid number string, which is the same
+     * as the message of the exception thrown by
+     * {@link Double#parseDouble(String)}
+     *
+     * @param value The invalid number string
+     * @return The error message
+     */
+    static String getNumberError(String value) {
+        try {
+            Double.parseDouble(value);
+            return value;
+        } catch (RuntimeException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Get the cache of the soil curve results, which is shared by the soil
+     * functions running on the same layer data and parameters
+     *
+     * @return The soil curve cache
+     */
+    public static SoilCurveCache getCurveCache() {
+        return CURVE_CACHE;
+    }
+
+    /**
+     * Set the maximum number of the cached soil curve results. The cache is
+     * shared by the whole process and is disabled by default, so it should
+     * be enabled when many soil profiles have the same layer data, e.g. for
+     * a batch of experiments on the same soils, and cleared afterwards.
+     *
+     * @param maxSize The maximum number of entries, 0 to disable the cache
+     */
+    public static void setCurveCacheSize(int maxSize) {
+        CURVE_CACHE.setMaxSize(maxSize);
+    }
+
+    /**
+     * Remove all the cached soil curve results
+     */
+    public static void clearCurveCache() {
+        CURVE_CACHE.clear();
+    }
+
+    /**
+     * Get the soil profile of the soil layer data in the data holder, which
+     * could be shared by the soil functions on the same soil. Only get the
+     * first soil site.
+     *
+     * @param data The experiment data holder
+     * @return The soil profile, or {@code null} if the soil data is not
+     * available
+     */
+    public static SoilProfile getSoilProfile(Map data) {
+        ArrayList<HashMap<String, Object>> soilLayers = getSoilLayer(data);
+        if (soilLayers == null) {
+            return null;
+        }
+        return new SoilProfile(soilLayers);
+    }
+
+    /**
+     * Get the soil profiles of all the soil sites in the data holder. In the
+     * multiple data json structure, all the entries of {@code soils} are
+     * used, otherwise the single {@code soil} is used. The soil site which
+     * shares the same layer array with a previous one is skipped.
+     *
+     * @param data The data holder
+     * @return The soil profiles, in the order of the soil sites
+     */
+    public static ArrayList<SoilProfile> getSoilProfiles(Map data) {
+        ArrayList<SoilProfile> profiles = new ArrayList<SoilProfile>();
+        ArrayList<Map> soils;
+
+        // Case for multiple data json structure
+        if (data.containsKey("soils")) {
+            soils = getObjectOr(data, "soils", new ArrayList());
+        } else {
+            ArrayList<HashMap<String, Object>> soilLayers = getSoilLayer(data);
+            if (soilLayers != null) {
+                profiles.add(new SoilProfile(soilLayers));
+            }
+            return profiles;
+        }
+
+        IdentityHashMap<Object, Boolean> added = new IdentityHashMap<Object, Boolean>();
+        for (Map soil : soils) {
+            ArrayList<HashMap<String, Object>> soilLayers = getObjectOr(soil, "soilLayer", new ArrayList());
+            if (added.put(soilLayers, Boolean.TRUE) != null) {
+                LOG.warn("DUPLICATED SOIL LAYER DATA:[" + getValueOr(soil, "soil_id", "") + "], ONLY THE FIRST ONE IS USED");
+                continue;
+            }
+            profiles.add(new SoilProfile(soilLayers));
+        }
+        return profiles;
     }
 
     /**
-     * Get soil layer data array from data holder. Only get the first soil site.
+     * Get soil layer data array from data holder. Only get the first soil site,
+     * see {@link #getSoilProfiles(Map)} for all the soil sites.
      *
      * @param data The experiment data holder
      * @return
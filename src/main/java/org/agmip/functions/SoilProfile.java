@@ -0,0 +1,134 @@
+package org.agmip.functions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.agmip.common.Functions.*;
+
+/**
+ * Column view of the soil layer records, so that the soil functions could run
+ * on primitive arrays.
+ *
+ * Each layer variable is parsed into a {@code double} column on first use and
+ * kept for the following functions, a missing or invalid value is stored as
+ * {@link #INVALID_NUMBER}. The results of the functions are kept as pending
+ * columns, which are visible to the following functions on the profile and
+ * written into the layer records in one pass by {@link #commit()}.
+ */
+public class SoilProfile {
+
+    private final List<? extends Map> layers;
+    private final HashMap<String, double[]> columns = new HashMap<String, double[]>();
+    private final LinkedHashMap<String, String[]> pending = new LinkedHashMap<String, String[]>();
+
+    /**
+     * Constructor
+     *
+     * @param layers The array of soil layer data
+     */
+    public SoilProfile(List<? extends Map> layers) {
+        this.layers = layers;
+    }
+
+    /**
+     * Get the number of soil layers
+     *
+     * @return The number of layers
+     */
+    public int size() {
+        return layers.size();
+    }
+
+    /**
+     * Get the soil layer records
+     *
+     * @return The array of soil layer data
+     */
+    public List<? extends Map> getLayers() {
+        return layers;
+    }
+
+    /**
+     * Get the values of a layer variable, parsed on first use
+     *
+     * @param var The variable name
+     * @return The value column (shared, do not modify)
+     */
+    public double[] getColumn(String var) {
+        double[] column = columns.get(var);
+        if (column == null) {
+            column = new double[layers.size()];
+            for (int i = 0; i < column.length; i++) {
+                column[i] = toDouble(getString(var, i));
+            }
+            columns.put(var, column);
+        }
+        return column;
+    }
+
+    /**
+     * Get the original value of a layer variable, including the pending
+     * value not committed yet
+     *
+     * @param var The variable name
+     * @param layer The layer index
+     * @return The value string, or empty string if missing
+     */
+    public String getString(String var, int layer) {
+        String[] values = pending.get(var);
+        if (values != null) {
+            return values[layer] == null ? "" : values[layer];
+        }
+        Object value = layers.get(layer).get(var);
+        return value == null ? "" : value.toString();
+    }
+
+    /**
+     * Find the first layer with missing or invalid value in any of the
+     * variables
+     *
+     * @param vars The variable names
+     * @return The layer index, or -1 if all the values are valid
+     */
+    public int findInvalid(String... vars) {
+        for (int i = 0; i < layers.size(); i++) {
+            for (String var : vars) {
+                if (Double.isNaN(getColumn(var)[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Set the values of a layer variable, which will be written into the
+     * layer records by {@link #commit()}
+     *
+     * @param var The variable name
+     * @param values The values for each layer
+     */
+    public void setColumn(String var, String[] values) {
+        pending.put(var, values);
+        columns.remove(var);
+    }
+
+    /**
+     * Write all the pending values into the layer records
+     */
+    public void commit() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        ArrayList<Map.Entry<String, String[]>> entries = new ArrayList<Map.Entry<String, String[]>>(pending.entrySet());
+        for (int i = 0; i < layers.size(); i++) {
+            Map layer = layers.get(i);
+            for (Map.Entry<String, String[]> entry : entries) {
+                layer.put(entry.getKey(), entry.getValue()[i]);
+            }
+        }
+        pending.clear();
+    }
+}
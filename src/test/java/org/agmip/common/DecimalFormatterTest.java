@@ -0,0 +1,37 @@
+package org.agmip.common;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DecimalFormatterTest {
+
+    @Test
+    public void formatTest() {
+        assertEquals("Round half up", "0.2", DecimalFormatter.format(0.15, 1));
+        assertEquals("Round half up", "2.68", DecimalFormatter.format(2.675, 2));
+        assertEquals("Round half up", "-0.13", DecimalFormatter.format(-0.125, 2));
+        assertEquals("No decimal part", "110", DecimalFormatter.format(109.5, 0));
+        assertEquals("Padding", "0.005", DecimalFormatter.format(0.005, 3));
+        assertEquals("Negative zero", "-0.00", DecimalFormatter.format(-0.001, 2));
+        assertEquals("Large value", "100000000000000000000", DecimalFormatter.format(1e20, 0));
+        assertEquals("Not a number", "NaN", DecimalFormatter.format(Double.NaN, 2));
+        assertEquals("Infinity", "-Infinity", DecimalFormatter.format(Double.NEGATIVE_INFINITY, 2));
+        assertEquals("Append", "x1.500", DecimalFormatter.append(1.5, 3, new StringBuilder("x")).toString());
+    }
+
+    @Test
+    public void sameAsStringFormatTest() {
+        Random r = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            int prec = r.nextInt(6);
+            double value = (r.nextInt(2000001) - 1000000) / Math.pow(10, r.nextInt(8));
+            if (i % 2 == 0) {
+                value = (2 * r.nextInt(100000) + 1) / (2 * Math.pow(10, prec));
+            }
+            assertEquals("String.format", String.format(Locale.ROOT, "%." + prec + "f", value), DecimalFormatter.format(value, prec));
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.agmip.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventTest {
+
+    private static ArrayList<Map> createEvents(String... typeAndDates) {
+        ArrayList<Map> events = new ArrayList<Map>();
+        for (int i = 0; i < typeAndDates.length; i += 2) {
+            HashMap<String, String> event = new HashMap<String, String>();
+            event.put("event", typeAndDates[i]);
+            if (typeAndDates[i + 1] != null) {
+                event.put("date", typeAndDates[i + 1]);
+            }
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static String toString(ArrayList<Map> events) {
+        StringBuilder sb = new StringBuilder();
+        for (Map event : events) {
+            sb.append(event.get("event")).append('@').append(event.get("date")).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void nextEventTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "irrigation", "19990420", "fertilizer", "19990425", "irrigation", "19990501");
+        Event event = new Event(events, "irrigation");
+        assertEquals("First event", "19990420", event.getCurrentEvent().get("date"));
+        event.updateEvent("irval", "10");
+        assertEquals("Next event", "19990501", event.getCurrentEvent().get("date"));
+        event.updateEvent("irval", "20");
+        assertFalse("No more event", event.isEventExist());
+
+        event.setEventType("fertilizer");
+        assertEquals("Switched event type", "19990425", event.getCurrentEvent().get("date"));
+        event.removeEvent();
+        assertFalse("Removed event", event.isEventExist());
+        assertEquals("Removed event", "planting@19990415 irrigation@19990420 irrigation@19990501", toString(events));
+    }
+
+    @Test
+    public void insertEventTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "irrigation", "19990420", "irrigation", "19990420", "fertilizer", "19990425");
+        Event event = new Event(events, "harvest");
+        event.addEvent("19990420", false);
+        event.addEvent("19990401", false);
+        event.addEvent("19991001", false);
+        assertEquals("Insert after same date, search from current event", "planting@19990415 irrigation@19990420 irrigation@19990420 harvest@19990401 harvest@19990420 fertilizer@19990425 harvest@19991001", toString(events));
+    }
+
+    @Test
+    public void insertEventUnsortedTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "irrigation", "abc", "irrigation", "19990410", "fertilizer", null, "fertilizer", "19990501");
+        Event event = new Event(events, "harvest");
+        event.addEvent("19990412", false);
+        event.addEvent("abc", false);
+        assertEquals("Skip invalid date", "harvest@19990412 planting@19990415 irrigation@abc irrigation@19990410 fertilizer@null fertilizer@19990501 harvest@abc", toString(events));
+    }
+
+    @Test
+    public void updateEventTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "fertilizer", "19990425");
+        Event event = new Event(events, "planting");
+        event.updateEvent("date", "19990501", false);
+        event.updateEvent("pdate", "19990501");
+        event.updateEvent("date", "19990420");
+        event.updateEvent("date", "19990601");
+        assertEquals("Insert new events", "planting@19990420 planting@19990601 fertilizer@19990425", toString(events));
+        assertEquals("Update existing event", "19990501", events.get(1).get("pdate"));
+
+        // Changed by others
+        events.add(0, createEvents("planting", "19990101").get(0));
+        event.setEventType("planting");
+        assertEquals("External change", "19990101", event.getCurrentEvent().get("date"));
+        event.updateEvent("pdate", "19990101");
+        assertEquals("External change", "19990420", event.getCurrentEvent().get("date"));
+    }
+
+    @Test
+    public void dateKeyTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "irrigation", "19990420", "irrigation", null, "fertilizer", "19990425");
+        events.get(1).put("date", 19990420);
+        Event event = new Event(events, "irrigation");
+        event.removeEvent();
+        assertNull("Missing date as 0", event.getCurrentEvent().get("date"));
+        event.removeEvent();
+        assertFalse("Removed all", event.isEventExist());
+        event.addEvent("19990420", false);
+        event.addEvent("-5", false);
+        assertEquals("Insert after removal", "planting@19990415 irrigation@-5 irrigation@19990420 fertilizer@19990425", toString(events));
+    }
+
+    @Test
+    public void eventIndexTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "irrigation", "19990420", "fertilizer", "19990425", "irrigation", "19990501", "planting", "20000415");
+        EventIndex index = new EventIndex(events);
+        assertEquals("Event count", 2, index.count("irrigation"));
+        assertEquals("Event count", 0, index.count("harvest"));
+        assertEquals("First event", "19990425", index.getFirstEvent("fertilizer").get("date"));
+        assertNull("First event", index.getFirstEvent("harvest"));
+        assertEquals("Next position", 3, index.nextPosition("irrigation", 2));
+
+        // Shared by cursors
+        Event irEvent = new Event(index, "irrigation");
+        irEvent.addEvent("19990421", false);
+        Event feEvent = new Event(index, "fertilizer");
+        assertEquals("Shared index", "19990425", feEvent.getCurrentEvent().get("date"));
+        assertEquals("Shared index", 3, index.count("irrigation"));
+
+        index.removeAll("planting");
+        assertEquals("Remove all", "irrigation@19990420 irrigation@19990421 fertilizer@19990425 irrigation@19990501", toString(events));
+        assertEquals("Remove all", 0, index.count("planting"));
+
+        // Changed by others
+        events.add(createEvents("planting", "20000415").get(0));
+        assertEquals("External change", 4, index.nextPosition("planting", 0));
+        assertEquals("External change", 20000415, index.getDateKey(4));
+    }
+
+    @Test
+    public void appendTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415");
+        events.add(new HashMap());
+        events.get(1).put("fecd", "FE001");
+        EventIndex index = new EventIndex(events);
+        String[] keys = {"date", "fecd"};
+        index.append("fertilizer", keys, new String[]{"19990501", "FE005"});
+        index.append("fertilizer", keys, new String[]{"19990510", "FE005"});
+        assertEquals("Fill last event", "planting@19990415 fertilizer@19990501 fertilizer@19990510 fertilizer@null", toString(events));
+        assertEquals("Fill last event", "FE001", events.get(1).get("fecd"));
+        assertEquals("New event", "FE005", events.get(2).get("fecd"));
+        assertEquals("Event count", 3, index.count("fertilizer"));
+        assertEquals("Date key", 19990501, index.getDateKey(1));
+    }
+
+    @Test
+    public void templateTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "fertilizer", "19990425");
+        events.get(0).put("plpop", "5");
+        Event event = new Event(events, "planting");
+        event.updateEvent("plpop", "7");
+        event.updateEvent("date", "19990501");
+        assertEquals("Template before update", "5", events.get(2).get("plpop"));
+        assertEquals("Updated event", "7", events.get(0).get("plpop"));
+
+        event.setEventType("fertilizer");
+        event.updateEvent("feamn", "10");
+        event.updateEvent("fecd", "FE005", false, true);
+        assertEquals("Updated event", "10", events.get(1).get("feamn"));
+        assertEquals("Template date", "planting@19990415 fertilizer@19990425 planting@19990501 fertilizer@19990425", toString(events));
+        assertNull("Template before update", events.get(3).get("feamn"));
+        assertEquals("New event", "FE005", events.get(3).get("fecd"));
+    }
+
+    @Test
+    public void templateAfterCurrentEventChangedTest() {
+        ArrayList<Map> events = createEvents("fertilizer", "19990425");
+        Event event = new Event(events, "fertilizer");
+        event.getCurrentEvent().put("feamn", "10");
+        event.updateEvent("fecd", "FE005");
+        event.addEvent("19990501", true).put("feacd", "AP002");
+        assertEquals("Changed current event", "10", events.get(0).get("feamn"));
+        assertEquals("New event", "fertilizer@19990425 fertilizer@19990501", toString(events));
+        assertNull("Template before change", events.get(1).get("feamn"));
+        assertNull("Template before update", events.get(1).get("fecd"));
+        assertEquals("New event", "AP002", events.get(1).get("feacd"));
+    }
+
+    @Test
+    public void batchTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "irrigation", "19990420", "irrigation", "19990420", "fertilizer", "19990425");
+        Event event = new Event(events, "irrigation");
+        Map current = event.getCurrentEvent();
+        Event.Batch batch = event.newBatch();
+        batch.addEvent("19990420", false).put("irval", "1");
+        batch.addEvent("19990401", false);
+        batch.addEvent("19991001", false);
+        batch.addEvent("abc", false);
+        batch.addEvent(null, false).put("date", "19990420");
+        assertEquals("Pending events", 5, batch.size());
+        assertEquals("Not merged before commit", 4, events.size());
+        batch.commit();
+        assertEquals("Merged events", "planting@19990415 irrigation@19990401 irrigation@19990420 irrigation@19990420 irrigation@19990420 irrigation@19990420 fertilizer@19990425 irrigation@19991001 irrigation@abc", toString(events));
+        assertEquals("Keep adding order", "1", events.get(4).get("irval"));
+        assertSame("Keep current event", current, event.getCurrentEvent());
+        event.updateEvent("irval", "2");
+        assertEquals("Move to next event", "19990420", event.getCurrentEvent().get("date"));
+        assertSame("Move to next event", events.get(3), event.getCurrentEvent());
+
+        events = createEvents("planting", "19990415", "irrigation", "abc", "irrigation", "19990410", "fertilizer", null, "fertilizer", "19990501");
+        batch = new Event(events, "harvest").newBatch();
+        batch.addEvent("19990500", false);
+        batch.addEvent("19990412", false);
+        batch.commit();
+        assertEquals("Merge into unsorted events", "harvest@19990412 planting@19990415 irrigation@abc irrigation@19990410 fertilizer@null harvest@19990500 fertilizer@19990501", toString(events));
+    }
+
+    @Test
+    public void batchFromCurrentEventTest() {
+        String[] typeAndDates = {"planting", "19820301", "fertilizer", "19820310", "irrigation", "19820320", "irrigation", "19820201", "harvest", "19820401"};
+        String[] dates = {"19820205", "19820315", "19820325", "19820201"};
+        ArrayList<Map> events = createEvents(typeAndDates);
+        Event event = new Event(events, "fertilizer");
+        Map current = event.getCurrentEvent();
+        Event.Batch batch = event.newBatch();
+        for (String date : dates) {
+            batch.addEvent(date, false);
+        }
+        batch.commit();
+        assertEquals("Merge from current event", "planting@19820301 fertilizer@19820201 fertilizer@19820205 fertilizer@19820310 fertilizer@19820315 irrigation@19820320 irrigation@19820201 fertilizer@19820325 harvest@19820401", toString(events));
+        assertSame("Keep current event", current, event.getCurrentEvent());
+
+        // Each event is placed as a single addEvent from the current event
+        for (String date : dates) {
+            ArrayList<Map> expected = createEvents(typeAndDates);
+            new Event(expected, "fertilizer").addEvent(date, false);
+            ArrayList<Map> actual = createEvents(typeAndDates);
+            batch = new Event(actual, "fertilizer").newBatch();
+            batch.addEvent(date, false);
+            batch.commit();
+            assertEquals("Same as addEvent [" + date + "]", toString(expected), toString(actual));
+        }
+    }
+
+    @Test
+    public void indexChangedByOthersTest() {
+        ArrayList<Map> events = createEvents("planting", "19990415", "irrigation", "19990420", "fertilizer", "19990425");
+        EventIndex index = new EventIndex(events);
+        events.set(2, createEvents("irrigation", "19990430").get(0));
+        assertEquals("Replaced last event", 2, index.count("irrigation"));
+        Collections.swap(events, 0, 2);
+        assertEquals("Reordered first event", "irrigation", index.getFirstEvent("irrigation").get("event"));
+        assertEquals("Reordered first event", 2, index.nextPosition("planting", 0));
+        events.set(1, createEvents("harvest", "19990501").get(0));
+        assertEquals("Middle event needs refresh", 0, index.count("harvest"));
+        index.refresh();
+        assertEquals("Refreshed index", 1, index.count("harvest"));
+        assertEquals("Refreshed index", 19990501, index.getDateKey(1));
+    }
+}
@@ -99,6 +99,65 @@ public class FunctionsTest {
         assertNull("Offset invalid offset", dateOffset("20120101", "1.2"));
     }
     
+    @Test
+    public void dateOffsetLeapYear() {
+        assertEquals("Date offset incorrect", "20120229", dateOffset("20120228", "1"));
+        assertEquals("Date offset incorrect", "20110301", dateOffset("20110228", "1"));
+        assertEquals("Date offset incorrect", "20000229", dateOffset("20000301", "-1"));
+    }
+
+    @Test
+    public void failDateOffsetInvalidCalendarDate() {
+        assertNull("Offset invalid date", dateOffset("20110229", "1"));
+        assertNull("Offset invalid date", dateOffset("20111301", "1"));
+    }
+
+    @Test
+    public void dateCodecRoundTrip() {
+        assertEquals("Epoch day incorrect", 0, AgmipDateCodec.parse("19700101"));
+        assertEquals("Epoch day incorrect", -1, AgmipDateCodec.parse("19691231"));
+        assertEquals("Epoch day incorrect", AgmipDateCodec.INVALID, AgmipDateCodec.parse("1970-01-01"));
+        for (int day = -25000; day < 50000; day++) {
+            assertEquals("Date codec round trip failed", day, AgmipDateCodec.parse(AgmipDateCodec.format(day)));
+        }
+    }
+
+    @Test
+    public void epochDayOffsetTest() {
+        int date = toEpochDay("20111225");
+        assertEquals("Epoch day offset incorrect", "20120101", appendAgmipDate(offsetDays(date, 7), new StringBuilder()).toString());
+        assertEquals("Invalid epoch day offset", INVALID_DATE, offsetDays(toEpochDay("2011122"), 7));
+    }
+
+    @Test
+    public void toIntTest() {
+        assertEquals("Integer parse incorrect", 1234, toInt("1234"));
+        assertEquals("Integer parse incorrect", -99, toInt("-99"));
+        assertEquals("Integer parse incorrect", Integer.MAX_VALUE, toInt("2147483647"));
+        assertEquals("Integer parse incorrect", 1982, toInt("19820203", 0, 4));
+        assertEquals("Parsed invalid integer", INVALID_INT, toInt(""));
+        assertEquals("Parsed invalid integer", INVALID_INT, toInt("1.0"));
+        assertEquals("Parsed invalid integer", INVALID_INT, toInt("2147483648"));
+        assertEquals("Parsed reserved integer", INVALID_INT, toInt("-2147483648"));
+        assertEquals("Parsed smallest integer", -2147483647, toInt("-2147483647"));
+        assertEquals("Parsed invalid integer", INVALID_INT, toInt("198", 0, 4));
+        assertEquals("Parsed invalid integer", INVALID_INT, toInt(null));
+    }
+
+    @Test
+    public void toDoubleTest() {
+        String[] tests = {"0", "-99", "25", " 9.0 ", ".01", "1.", "-0.0", "12.34", "0.1", "1e3", "1.5E-2",
+            "123456789012345678901234567890", "0.30000000000000004", "4.35"};
+        for (String test : tests) {
+            assertEquals("Double parse incorrect [" + test + "]", Double.parseDouble(test), toDouble(test), 0);
+        }
+        assertTrue("Sign of zero lost", 1 / toDouble("-0") < 0);
+        String[] fails = {null, "", "  ", "-", ".", "abc", "1.2.3", "1e", "1e+", "12a", "--1"};
+        for (String fail : fails) {
+            assertTrue("Parsed invalid number [" + fail + "]", Double.isNaN(toDouble(fail)));
+        }
+    }
+
     @Test
     public void numericOffsetTest() {
         String test = "12.34";
@@ -154,6 +213,20 @@ public class FunctionsTest {
         assertEquals("Multiply incorrect", test, multiply(f1, f2));
     }
 
+    @Test
+    public void fixedDecimalMatchesBigDecimalTest() {
+        String[] values = {"0", "-0.0", "11.22", "1.12", "-11.11", ".01", "1.", "+5", "007.50", "0.000001",
+            "0.0000001", "123456789012345678", "-999999999.999999999", "1E3", "2.50e-2", "100"};
+        for (String v1 : values) {
+            for (String v2 : values) {
+                assertEquals("Numeric offset incorrect [" + v1 + ", " + v2 + "]",
+                        new java.math.BigDecimal(v1).add(new java.math.BigDecimal(v2)).toString(), numericOffset(v1, v2));
+                assertEquals("Multiply incorrect [" + v1 + ", " + v2 + "]",
+                        new java.math.BigDecimal(v1).multiply(new java.math.BigDecimal(v2)).toString(), multiply(v1, v2));
+            }
+        }
+    }
+
     @Test
     public void mutliplyIntentionalFailure() {
         String f1 = "Hi";
@@ -9,9 +9,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.agmip.common.Functions;
 import org.agmip.util.JSONAdapter;
 import static org.agmip.util.MapUtil.*;
 import static org.junit.Assert.*;
@@ -138,6 +143,44 @@ public class ExperimentHelperTest {
         assertEquals("getAutoPlantingDate: no date find case", expected_3, acctual_3);
     }
 
+    @Test
+    public void testGetAutoPlantingDates_machakos() throws IOException, Exception {
+        URL test_resource = this.getClass().getResource("/machakos_wth_only.json");
+        String line;
+        ArrayList<String[]> paramSets = new ArrayList<String[]>();
+        for (String startDate : new String[]{"01-01", "01-15", "03-01", "11-15"}) {
+            for (String accRainAmt : new String[]{"5", "9.0", "20"}) {
+                paramSets.add(new String[]{startDate, "02-28", accRainAmt, "6"});
+            }
+        }
+        paramSets.add(new String[]{"01-15", "02-28", "abc", "6"});
+        paramSets.add(new String[]{"01-15"});
+
+        BufferedReader br = new BufferedReader(
+                new InputStreamReader(
+                new FileInputStream(test_resource.getPath())));
+
+        if ((line = br.readLine()) != null) {
+
+            Map<String, Object> data = JSONAdapter.fromJSON(line);
+            data.put("exp_dur", "3");
+            ArrayList<HashMap<String, ArrayList<String>>> results = ExperimentHelper.getAutoPlantingDates(paramSets, data);
+            log.info("Results: {}", results);
+
+            assertEquals("getAutoPlantingDates: result number", paramSets.size(), results.size());
+            assertEquals("getAutoPlantingDates: normal case", "[19800124, 19810218, 19820227]", results.get(4).get("pdate").toString());
+            for (int i = 0; i < paramSets.size() - 1; i++) {
+                String[] params = paramSets.get(i);
+                assertEquals("getAutoPlantingDates: same as single call " + i,
+                        ExperimentHelper.getAutoPlantingDate(params[0], params[1], params[2], params[3], data),
+                        results.get(i));
+            }
+            assertTrue("getAutoPlantingDates: invalid parameter set", results.get(paramSets.size() - 1).isEmpty());
+            assertTrue("getAutoPlantingDate: threshold rounded to 0",
+                    ExperimentHelper.getAutoPlantingDate("01-15", "02-28", "0.0004", "6", data).isEmpty());
+        }
+    }
+
     @Test
     @Ignore
     public void testGetAutoPlantingDate_machakos_scYear() throws IOException, Exception {
@@ -181,6 +224,147 @@ public class ExperimentHelperTest {
 
     }
 
+    @Test
+    public void testGetAutoPlantingDate_gaps() {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        HashMap<String, Object> weather = new HashMap<String, Object>();
+        ArrayList<Map> dailyData = new ArrayList<Map>();
+        int first = Functions.toEpochDay("19830101");
+        int gapStart = Functions.toEpochDay("19840110");
+        int gapEnd = Functions.toEpochDay("19840120");
+        for (int day = first; day <= Functions.toEpochDay("19851231"); day++) {
+            if (day >= gapStart && day <= gapEnd) {
+                continue;
+            }
+            HashMap<String, String> daily = new HashMap<String, String>();
+            String w_date = Functions.appendAgmipDate(day, new StringBuilder()).toString();
+            daily.put("w_date", w_date);
+            if (w_date.equals("19830120") || w_date.equals("19840125") || w_date.equals("19850201")) {
+                daily.put("rain", "12");
+            } else {
+                daily.put("rain", "0");
+            }
+            dailyData.add(daily);
+        }
+        weather.put("dailyWeather", dailyData);
+        data.put("weather", weather);
+        data.put("exp_dur", "3");
+
+        DailyDateIndex index = new DailyWeatherColumns(dailyData).getDateIndex();
+        assertEquals("DailyDateIndex: exact date", 365 + 8, index.indexOf(Functions.toEpochDay("19840110") - 1));
+        assertEquals("DailyDateIndex: date in gap", -1, index.indexOf(Functions.toEpochDay("19840115")));
+        assertEquals("DailyDateIndex: ceiling in gap", 365 + 9, index.ceilingIndex(1984, 115));
+        assertEquals("DailyDateIndex: leap day", 365 + 59 - 11, index.ceilingIndex(1984, 229));
+
+        HashMap<String, ArrayList<String>> results = ExperimentHelper.getAutoPlantingDate("01-15", "02-29", "10", "1", data);
+        assertEquals("getAutoPlantingDate: gap case", "[19830120, 19840125, 19850201]", results.get("pdate").toString());
+
+        results = ExperimentHelper.getAutoPlantingDate("02-20", "02-29", "10", "1", data);
+        assertEquals("getAutoPlantingDate: leap year case", "[19830227, 19840228, 19850227]", results.get("pdate").toString());
+    }
+
+    @Test
+    public void testGetAutoPlantingDate_parallelWindows() {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        HashMap<String, Object> weather = new HashMap<String, Object>();
+        ArrayList<Map> dailyData = new ArrayList<Map>();
+        for (int day = Functions.toEpochDay("19010101"); day <= Functions.toEpochDay("19991231"); day++) {
+            HashMap<String, String> daily = new HashMap<String, String>();
+            daily.put("w_date", Functions.appendAgmipDate(day, new StringBuilder()).toString());
+            daily.put("rain", Integer.toString(day * 7919 % 13));
+            dailyData.add(daily);
+        }
+        weather.put("dailyWeather", dailyData);
+        data.put("weather", weather);
+        data.put("exp_dur", "99");
+
+        HashMap<String, ArrayList<String>> expected = ExperimentHelper.getAutoPlantingDate("03-01", "04-15", "30", "3", data);
+        HashMap<String, ArrayList<String>> results = ExperimentHelper.getAutoPlantingDate("03-01", "04-15", "30", "3", data, 2);
+        assertEquals("getAutoPlantingDate: parallel window number", 99, results.get("pdate").size());
+        assertEquals("getAutoPlantingDate: parallel windows", expected, results);
+    }
+
+    @Test
+    public void testGetAutoPlantingDateByStation() {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        ArrayList<Map> wths = new ArrayList<Map>();
+        String[][] rainDays = {{"19830120", "19840125"}, {"19830201", "19840210"}, {}};
+        for (int i = 0; i < rainDays.length; i++) {
+            HashMap<String, Object> weather = new HashMap<String, Object>();
+            ArrayList<Map> dailyData = new ArrayList<Map>();
+            for (int day = Functions.toEpochDay("19830101"); day <= Functions.toEpochDay("19841231"); day++) {
+                HashMap<String, String> daily = new HashMap<String, String>();
+                String w_date = Functions.appendAgmipDate(day, new StringBuilder()).toString();
+                daily.put("w_date", w_date);
+                daily.put("rain", Arrays.asList(rainDays[i]).contains(w_date) ? "12" : "0");
+                dailyData.add(daily);
+            }
+            weather.put("wst_id", "WST" + i);
+            weather.put("dailyWeather", dailyData);
+            wths.add(weather);
+        }
+        HashMap<String, Object> empty = new HashMap<String, Object>();
+        empty.put("wst_id", "EMPTY");
+        wths.add(empty);
+        data.put("weathers", wths);
+        data.put("exp_dur", "2");
+
+        Map<String, HashMap<String, ArrayList<String>>> results = ExperimentHelper.getAutoPlantingDateByStation("01-15", "02-28", "10", "1", data);
+        log.info("Results: {}", results);
+        assertEquals("getAutoPlantingDateByStation: station order", "[WST0, WST1, WST2, EMPTY]", results.keySet().toString());
+        assertEquals("getAutoPlantingDateByStation: 1st station", "[19830120, 19840125]", results.get("WST0").get("pdate").toString());
+        assertEquals("getAutoPlantingDateByStation: 2nd station", "[19830201, 19840210]", results.get("WST1").get("pdate").toString());
+        assertEquals("getAutoPlantingDateByStation: no date find case", "[19830227, 19840227]", results.get("WST2").get("pdate").toString());
+        assertTrue("getAutoPlantingDateByStation: no daily data", results.get("EMPTY").isEmpty());
+    }
+
+    @Test
+    public void testRainfallIndex() {
+        ArrayList<Map> dailyData = new ArrayList<Map>();
+        String[] rains = {"0", "2.4", "1.4", "0.2", "abc", "5", "0"};
+        for (int i = 0; i < rains.length; i++) {
+            HashMap<String, String> daily = new HashMap<String, String>();
+            daily.put("w_date", "1982010" + (i + 1));
+            daily.put("rain", rains[i]);
+            dailyData.add(daily);
+        }
+        RainfallIndex rainIndex = new RainfallIndex(new DailyWeatherColumns(dailyData));
+
+        assertEquals("RainfallIndex: exact sum", 4.0, rainIndex.getRainSum(1, 4), 0);
+        assertEquals("RainfallIndex: sum reaches threshold", 3, rainIndex.findFirst(0, 7, 3, 4));
+        assertEquals("RainfallIndex: clipped by window start", -1, rainIndex.findFirst(2, 5, 3, 4));
+        assertEquals("RainfallIndex: invalid value as 0", 5, rainIndex.findFirst(2, 7, 3, 5));
+        assertEquals("RainfallIndex: repeated query", 5, rainIndex.findFirst(2, 7, 3, 5));
+        assertEquals("RainfallIndex: not found", -1, rainIndex.findFirst(0, 7, 2, 10));
+    }
+
+    @Test
+    public void testDailyWeatherColumns() {
+        ArrayList<Map> dailyData = new ArrayList<Map>();
+        String[][] recs = {{"19820101", "19", "24.4"}, {"19820102", "", "24"}, {"1982013", "0.8", null}};
+        for (String[] rec : recs) {
+            HashMap<String, String> daily = new HashMap<String, String>();
+            daily.put("w_date", rec[0]);
+            daily.put("rain", rec[1]);
+            if (rec[2] != null) {
+                daily.put("tmax", rec[2]);
+            }
+            dailyData.add(daily);
+        }
+        dailyData.add(new HashMap());
+
+        DailyWeatherColumns wthCols = new DailyWeatherColumns(dailyData);
+        assertEquals("DailyWeatherColumns: size", 4, wthCols.size());
+        assertEquals("DailyWeatherColumns: date", "19820102", wthCols.getDateString(1));
+        assertEquals("DailyWeatherColumns: invalid date", "", wthCols.getDateString(2));
+        assertEquals("DailyWeatherColumns: rain", 19, wthCols.getRain()[0], 0);
+        assertTrue("DailyWeatherColumns: blank rain", wthCols.isMissing(DailyWeatherColumns.RAIN, 1));
+        assertFalse("DailyWeatherColumns: absent rain", wthCols.isMissing(DailyWeatherColumns.RAIN, 3));
+        assertEquals("DailyWeatherColumns: absent rain", 0, wthCols.getRain()[3], 0);
+        assertTrue("DailyWeatherColumns: absent tmax", wthCols.isMissing(DailyWeatherColumns.TMAX, 2));
+        assertFalse("DailyWeatherColumns: tmax", wthCols.isMissing(DailyWeatherColumns.TMAX, 1));
+    }
+
     @Test
     public void testGetFertDistribution() throws IOException, Exception {
         String line;
@@ -369,4 +553,184 @@ public class ExperimentHelperTest {
             assertEquals("getRootDistribution: normal case " + i, expected[i], (String) acctual.get(i).get("slsc"));
         }
     }
+
+    private static HashMap<String, Object> createExperiment() {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        AcePathfinderUtil.insertValue(data, "fen_tot", "110");
+        AcePathfinderUtil.insertValue(data, "pdate", "19830415");
+        AcePathfinderUtil.insertValue(data, "omamt", "1000");
+        AcePathfinderUtil.insertValue(data, "sllb", "5");
+        AcePathfinderUtil.insertValue(data, "sloc", "2.00");
+        AcePathfinderUtil.insertValue(data, "sllb", "30");
+        AcePathfinderUtil.insertValue(data, "sloc", "1.00");
+        AcePathfinderUtil.insertValue(data, "sllb", "90");
+        AcePathfinderUtil.insertValue(data, "sloc", "0.10");
+        HashMap<String, Object> weather = new HashMap<String, Object>();
+        ArrayList<Map> dailyData = new ArrayList<Map>();
+        for (int day = Functions.toEpochDay("19830101"); day <= Functions.toEpochDay("19841231"); day++) {
+            HashMap<String, String> daily = new HashMap<String, String>();
+            daily.put("w_date", Functions.appendAgmipDate(day, new StringBuilder()).toString());
+            daily.put("rain", Integer.toString(day * 7919 % 13));
+            dailyData.add(daily);
+        }
+        weather.put("dailyWeather", dailyData);
+        data.put("weather", weather);
+        data.put("exp_dur", "2");
+        return data;
+    }
+
+    @Test
+    public void testExperimentContext() {
+        String[] offsets = {"10", "45"};
+        String[] ptps = {"33.3", "66.7"};
+        HashMap<String, Object> expected = createExperiment();
+        ExperimentHelper.getFertDistribution("2", "FE005", "AP002", "10", offsets, ptps, expected);
+        ExperimentHelper.getOMDistribution("-7", "RE003", "8.3", "5", "50", "2.5", expected);
+        SoilHelper.getRootDistribution("1", "20", "180", expected);
+        ExperimentHelper.getStableCDistribution(".55", "20", "60", expected);
+        HashMap<String, ArrayList<String>> expectedDates = ExperimentHelper.getAutoPlantingDate("03-01", "04-15", "30", "3", expected);
+
+        HashMap<String, Object> data = createExperiment();
+        ExperimentContext context = new ExperimentContext(data);
+        ExperimentHelper.getFertDistribution("2", "FE005", "AP002", "10", offsets, ptps, context);
+        ExperimentHelper.getOMDistribution("-7", "RE003", "8.3", "5", "50", "2.5", context);
+        SoilHelper.getRootDistribution("1", "20", "180", context);
+        ExperimentHelper.getStableCDistribution(".55", "20", "60", context);
+        HashMap<String, ArrayList<String>> dates = ExperimentHelper.getAutoPlantingDate("03-01", "04-15", "30", "3", context);
+        assertEquals("ExperimentContext: planting dates", expectedDates, dates);
+        assertEquals("ExperimentContext: same output", expected, data);
+        assertSame("ExperimentContext: cached", context.getSoilProfile(), context.getSoilProfile());
+
+        data.put("fen_tot", "220");
+        assertEquals("ExperimentContext: changed value", 220, context.getDouble("fen_tot"), 0);
+        HashMap soil = (HashMap) data.get("soil");
+        soil.put("soilLayer", new ArrayList());
+        assertEquals("ExperimentContext: replaced layers", 0, context.getSoilProfile().size());
+        data.remove("management");
+        assertEquals("ExperimentContext: removed events", 0, context.getEventIndex().size());
+    }
+
+    private static ArrayList<String> getEventValues(Map data, String eventType, String key) {
+        ArrayList<String> values = new ArrayList<String>();
+        Map mgnData = getObjectOr(data, "management", new HashMap());
+        ArrayList<Map> events = getObjectOr(mgnData, "events", new ArrayList());
+        for (Map event : events) {
+            if (eventType.equals(event.get("event"))) {
+                values.add((String) event.get(key));
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testFunctionPipeline() {
+        HashMap<String, Object> expected = createExperiment();
+        ExperimentHelper.getFertDistribution("2", "FE005", "AP002", "10", new String[]{"10", "45"}, new String[]{"33.3", "66.7"}, expected);
+        ExperimentHelper.getOMDistribution("-7", "RE003", "8.3", "5", "50", "2.5", expected);
+        SoilHelper.getRootDistribution("1", "20", "180", expected);
+        ExperimentHelper.getStableCDistribution(".55", "20", "60", expected);
+
+        FunctionPipeline pipeline = new FunctionPipeline()
+                .addStep("FERT_DIST", "2", "FE005", "AP002", "10", "10", "33.3", "45", "66.7")
+                .addStep("OM_DIST", "-7", "RE003", "8.3", "5", "50", "2.5")
+                .addStep("ROOT_DIST", "1", "20", "180")
+                .addStep("STABLEC", ".55", "20", "60");
+        HashMap<String, Object> data = createExperiment();
+        assertTrue("FunctionPipeline: no planting dates", pipeline.run(data).isEmpty());
+        assertEquals("FunctionPipeline: same output", expected, data);
+        assertEquals("FunctionPipeline: fertilizer from recorded planting", Arrays.asList("19830425", "19830530"), getEventValues(data, "fertilizer", "date"));
+
+        // The planting dates found are used by the following steps
+        expected = createExperiment();
+        HashMap<String, ArrayList<String>> expectedDates = ExperimentHelper.getAutoPlantingDate("03-01", "04-15", "30", "3", expected);
+        pipeline = new FunctionPipeline()
+                .addStep("AUTO_PDATE", "03-01", "04-15", "30", "3")
+                .addStep("FERT_DIST", "2", "FE005", "AP002", "10", "10", "33.3", "45", "66.7")
+                .addStep("OM_DIST", "-7", "RE003", "8.3", "5", "50", "2.5")
+                .addStep("ROOT_DIST", "1", "20", "180")
+                .addStep("STABLEC", ".55", "20", "60");
+        data = createExperiment();
+        ArrayList<HashMap<String, ArrayList<String>>> dates = pipeline.run(data);
+        assertEquals("FunctionPipeline: steps", 5, pipeline.size());
+        assertEquals("FunctionPipeline: planting dates", 1, dates.size());
+        assertEquals("FunctionPipeline: planting dates", expectedDates, dates.get(0));
+        assertEquals("FunctionPipeline: planting dates", Arrays.asList("19830310", "19840308"), dates.get(0).get("pdate"));
+        assertEquals("FunctionPipeline: planting events", Arrays.asList("19830310", "19840308"), getEventValues(data, "planting", "date"));
+        assertEquals("FunctionPipeline: fertilizer dates", Arrays.asList("19830320", "19830424", "19840318", "19840422"), getEventValues(data, "fertilizer", "date"));
+        assertEquals("FunctionPipeline: fertilizer amounts", Arrays.asList("37", "73", "37", "73"), getEventValues(data, "fertilizer", "feamn"));
+        assertEquals("FunctionPipeline: organic matter date", Arrays.asList("19830303"), getEventValues(data, "organic_matter", "date"));
+
+        HashMap<String, Object> withSoil = data;
+        data = createExperiment();
+        data.remove("soil");
+        pipeline.run(data);
+        assertEquals("FunctionPipeline: without soil data", withSoil.get("management"), data.get("management"));
+        assertNull("FunctionPipeline: without soil data", data.get("soil"));
+
+        try {
+            pipeline.addStep("ROOT_DIST", "1", "20");
+            fail("FunctionPipeline: missing parameter");
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            pipeline.addStep("UNKNOWN");
+            fail("FunctionPipeline: unknown function");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testBatchRunner() {
+        FunctionPipeline pipeline = new FunctionPipeline()
+                .addStep("AUTO_PDATE", "03-01", "04-15", "30", "3")
+                .addStep("FERT_DIST", "2", "FE005", "AP002", "10", "10", "33.3", "45", "66.7")
+                .addStep("ROOT_DIST", "1", "20", "180")
+                .addStep("STABLEC", ".55", "20", "60");
+        final int total = 40;
+        ArrayList<HashMap<String, Object>> expected = new ArrayList<HashMap<String, Object>>();
+        ArrayList<ArrayList<HashMap<String, ArrayList<String>>>> expectedDates = new ArrayList<ArrayList<HashMap<String, ArrayList<String>>>>();
+        for (int i = 0; i < total; i++) {
+            HashMap<String, Object> data = createExperiment();
+            data.put("fen_tot", Integer.toString(100 + i));
+            expectedDates.add(pipeline.run(data));
+            expected.add(data);
+        }
+
+        final int[] pulled = new int[1];
+        Iterator<HashMap> input = new Iterator<HashMap>() {
+            public boolean hasNext() {
+                return pulled[0] < total;
+            }
+
+            public HashMap next() {
+                HashMap<String, Object> data = createExperiment();
+                data.put("fen_tot", Integer.toString(100 + pulled[0]++));
+                return data;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            BatchRunner runner = new BatchRunner(pipeline).setExecutor(executor).setMaxInFlight(4);
+            Iterator<BatchRunner.Result> results = runner.run(input);
+            for (int i = 0; i < total; i++) {
+                assertTrue("BatchRunner: has result", results.hasNext());
+                BatchRunner.Result result = results.next();
+                assertTrue("BatchRunner: bounded in-flight", pulled[0] <= i + 1 + 4);
+                assertEquals("BatchRunner: input order", i, result.getIndex());
+                assertNull("BatchRunner: no error", result.getError());
+                assertEquals("BatchRunner: planting dates", expectedDates.get(i), result.getPlantingDates());
+                assertEquals("BatchRunner: same output", expected.get(i), result.getData());
+                assertEquals("BatchRunner: fertilizer from planting dates",
+                        Arrays.asList("19830320", "19830424", "19840318", "19840422"),
+                        getEventValues(result.getData(), "fertilizer", "date"));
+            }
+            assertFalse("BatchRunner: all results", results.hasNext());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -10,6 +10,7 @@ import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Random;
 import org.agmip.util.JSONAdapter;
 import static org.agmip.util.MapUtil.*;
 import static org.junit.Assert.*;
@@ -74,4 +75,133 @@ public class SoilHelperTest {
         SoilHelper.getRootDistribution(m, pp, rd, data);
         log.info("getRootDistribution() output: {}", data.toString());
     }
+
+    @Test
+    public void testSoilProfile() {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        AcePathfinderUtil.insertValue(data, "sllb", "5");
+        AcePathfinderUtil.insertValue(data, "sloc", "2.00");
+        AcePathfinderUtil.insertValue(data, "sllb", "15");
+        AcePathfinderUtil.insertValue(data, "sloc", "1.00");
+        AcePathfinderUtil.insertValue(data, "sllb", "60");
+        AcePathfinderUtil.insertValue(data, "sloc", "0.50");
+
+        SoilProfile profile = SoilHelper.getSoilProfile(data);
+        SoilHelper.getRootDistribution("1", "20", "180", profile);
+        ExperimentHelper.getStableCDistribution("0.85", "20", "180", profile);
+        ArrayList<HashMap> layers = getObjectOr((HashMap) getObjectOr(data, "soil", new HashMap()), "soilLayer", new ArrayList());
+        assertNull("Not written before commit", layers.get(0).get("slrgf"));
+        assertEquals("Pending value", "0.652", profile.getString("slrgf", 2));
+
+        profile.commit();
+        String[] slrgf = {"1.000", "1.000", "0.652"};
+        String[] slsc = {"1.70", "0.85", "0.45"};
+        for (int i = 0; i < layers.size(); i++) {
+            assertEquals("getRootDistribution: shared profile", slrgf[i], layers.get(i).get("slrgf"));
+            assertEquals("getStableCDistribution: shared profile", slsc[i], layers.get(i).get("slsc"));
+        }
+    }
+
+    @Test
+    public void testSoilCurveKernel() {
+        Random r = new Random(0);
+        int[] offsets = new int[10001];
+        for (int p = 1; p < offsets.length; p++) {
+            offsets[p] = offsets[p - 1] + r.nextInt(8);
+        }
+        int size = offsets[offsets.length - 1];
+        double[] sllb = new double[size];
+        double[] sloc = new double[size];
+        for (int p = 1; p < offsets.length; p++) {
+            double depth = 0;
+            for (int i = offsets[p - 1]; i < offsets[p]; i++) {
+                depth += 1 + r.nextInt(40);
+                sllb[i] = depth;
+                sloc[i] = r.nextDouble() * 3;
+            }
+        }
+        double[] slrgf = new double[size];
+        double[] slsc = new double[size];
+        SoilCurveKernel.getRootGrowthFactors(sllb, offsets, 1, 20, 180, slrgf);
+        SoilCurveKernel.getStableC(sllb, sloc, offsets, 0.85, 20, 180, slsc);
+
+        double k = Math.log(0.02) / (180 - 20);
+        double som2_0 = 0.95 * (1 - 0.85);
+        for (int p = 1; p < offsets.length; p++) {
+            double last = 0;
+            for (int i = offsets[p - 1]; i < offsets[p]; i++) {
+                double mid = (sllb[i] + last) / 2;
+                last = sllb[i];
+                assertEquals("Root growth factor", SoilHelper.getGrowthFactor(mid, 20, k, 1.0), slrgf[i], 0);
+                double f = SoilHelper.getGrowthFactor(mid, 20, k, som2_0);
+                assertEquals("Stable C", sloc[i] * (1 - Math.max(0.02, f) / 0.95), slsc[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testCurveCache() {
+        SoilCurveCache cache = SoilHelper.getCurveCache();
+        assertEquals("Disabled by default", 0, cache.getMaxSize());
+        SoilHelper.setCurveCacheSize(16);
+        try {
+            ArrayList<HashMap> results = new ArrayList<HashMap>();
+            for (String pp : new String[]{"20", "20.0", "30"}) {
+                HashMap<String, Object> data = new HashMap<String, Object>();
+                AcePathfinderUtil.insertValue(data, "sllb", "5");
+                AcePathfinderUtil.insertValue(data, "sllb", "60");
+                SoilHelper.getRootDistribution("1", pp, "180", data);
+                results.add(data);
+            }
+            assertEquals("Hit on same content", 1, cache.getHitCount());
+            assertEquals("Miss on new parameters", 2, cache.getMissCount());
+            assertEquals("Same result", results.get(0), results.get(1));
+            assertFalse("Different result", results.get(0).equals(results.get(2)));
+
+            cache.setMaxSize(1);
+            assertEquals("Evict", 1, cache.size());
+            HashMap<String, Object> data = new HashMap<String, Object>();
+            AcePathfinderUtil.insertValue(data, "sllb", "5");
+            AcePathfinderUtil.insertValue(data, "sllb", "60");
+            SoilHelper.getRootDistribution("1", "20", "180", data);
+            assertEquals("Evicted entry", 3, cache.getMissCount());
+            assertEquals("Recomputed", results.get(0), data);
+        } finally {
+            SoilHelper.setCurveCacheSize(0);
+            SoilHelper.clearCurveCache();
+        }
+        assertEquals("Cleared", 0, cache.size());
+        assertEquals("Statistics reset", 0, cache.getMissCount());
+    }
+
+    @Test
+    public void testGetRootDistributionForSoils() {
+        ArrayList<HashMap> soils = new ArrayList<HashMap>();
+        ArrayList<HashMap> expected = new ArrayList<HashMap>();
+        for (int i = 0; i < 20; i++) {
+            HashMap<String, Object> data = new HashMap<String, Object>();
+            HashMap<String, Object> copy = new HashMap<String, Object>();
+            for (int layer = 1; layer <= 3 + i % 4; layer++) {
+                String sllb = String.valueOf(layer * (5 + i));
+                AcePathfinderUtil.insertValue(data, "sllb", sllb);
+                AcePathfinderUtil.insertValue(data, "sloc", "1.5");
+                AcePathfinderUtil.insertValue(copy, "sllb", sllb);
+                AcePathfinderUtil.insertValue(copy, "sloc", "1.5");
+            }
+            SoilHelper.getRootDistribution("1", "20", "180", copy);
+            ExperimentHelper.getStableCDistribution("0.85", "20", "180", copy);
+            soils.add((HashMap) data.get("soil"));
+            expected.add((HashMap) copy.get("soil"));
+        }
+        // The same soil site is only calculated once
+        soils.add(soils.get(0));
+        expected.add(expected.get(0));
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("soils", soils);
+
+        SoilHelper.getRootDistributionForSoils("1", "20", "180", data);
+        ExperimentHelper.getStableCDistributionForSoils("0.85", "20", "180", data);
+        assertEquals("Multiple soil sites", expected, soils);
+        assertEquals("Soil profiles", 20, SoilHelper.getSoilProfiles(data).size());
+    }
 }